@@ -0,0 +1,701 @@
+import ImageUtility.BilateralFilter;
+import ImageUtility.ColorTable;
+import ImageUtility.IntPlane;
+import ImageUtility.LabPlanes;
+import ImageUtility.LabDifference;
+import ImageUtility.LabelDifference;
+import ImageUtility.RowBands;
+
+import javax.imageio.ImageIO;
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+
+/**
+ * Headless command line mode.
+ * Segments every image given by directories, files or glob patterns
+ * concurrently and prints the throughput.
+ *
+ * usage: Main [-o dir] [-t threads] [-p filter threads] [--stages] [--pyramid levels] [--tile size]
+ *             [--lab-planes byte|float] [bilateral filter options] input...
+ */
+public class BatchSegmentation {
+
+    private List<File> inputs = new ArrayList<File>();
+    private File outputDirectory = null;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    // threads for the filter stages of each image
+    private int filterThreads = 1;
+    private RowBands bands = RowBands.SEQUENTIAL;
+    // the pool of 'bands', or null when the filters run on the calling thread
+    private ExecutorService filterExecutor = null;
+    private boolean writeStages = false;
+
+    private int bilateralRadius = BilateralFilter.DEFAULT_RADIUS;
+    private double sigmaSpace = BilateralFilter.DEFAULT_SIGMA_SPACE;
+    private double sigmaColor = BilateralFilter.DEFAULT_SIGMA_COLOR;
+    private BilateralFilter.Mode bilateralMode = BilateralFilter.Mode.EXACT;
+    private BilateralFilter bilateralFilter;
+
+    // precision of the Lab planes read by the filters, or null for packed Lab data
+    private LabPlanes.Precision labPrecision = null;
+
+    // color conversion options
+    private boolean directLabTable = false;
+    private boolean validateColor = false;
+
+    // compare the dilation of the trapped ball segmentation with its reference on random regions
+    private boolean validateDilation = false;
+    private static final int DILATION_TRIALS = 2000;
+
+    // compare the loaded pixels of the inputs with ImageIO instead of segmenting
+    private boolean validateLoader = false;
+
+    // compare the bilateral filter with the exact one instead of segmenting
+    private boolean bilateralReport = false;
+    private LabDifference bilateralDifference = new LabDifference();
+
+    // the pyramid report fails an image whose labels differ from those of the full resolution in more than this ratio of pixels
+    private static final double PYRAMID_DIFFERENCE_TOLERANCE = 0.2;
+
+    // half resolution levels segmented first, and whether to compare them with the full resolution
+    private int pyramidLevels = 0;
+    private boolean pyramidReport = false;
+    private LabelDifference pyramidDifference = new LabelDifference();
+    private long pyramidNanos = 0, fullNanos = 0;
+
+    // thin the thresholded borders before growing the regions
+    private boolean thinBorders = false;
+
+    // assign the border and leftover pixels to the nearest regions
+    private boolean fillBorders = false;
+
+    // merge the regions of each image down to a count or up to a Lab distance, if either is given
+    private int mergeCount = 0;
+    private double mergeDistance = Double.POSITIVE_INFINITY;
+
+    // tile size of the out-of-core mode, or 0 to segment each image at once
+    private int tileSize = 0;
+    private int tileOverlap = TiledSegmentation.DEFAULT_OVERLAP;
+
+    // decode tiled images once into off-heap planes, mapped onto files in the directory if given
+    private boolean offHeap = false;
+    private File mapDirectory = null;
+
+    // every worker thread reuses the working buffers of its own engine
+    private ThreadLocal<SegmentationEngine> engines = new ThreadLocal<SegmentationEngine>() {
+        @Override
+        protected SegmentationEngine initialValue() {
+            SegmentationEngine engine = new SegmentationEngine();
+            engine.setBilateralFilter(bilateralFilter);
+            engine.setBands(bands);
+            engine.setLabPrecision(labPrecision);
+            engine.setThinBorders(thinBorders);
+            engine.setFillBorders(fillBorders);
+            engine.setPyramidLevels(pyramidLevels);
+            return engine;
+        }
+    };
+
+    // engines segmenting at full resolution for the pyramid report
+    private ThreadLocal<SegmentationEngine> fullEngines = new ThreadLocal<SegmentationEngine>() {
+        @Override
+        protected SegmentationEngine initialValue() {
+            SegmentationEngine engine = new SegmentationEngine();
+            engine.setBilateralFilter(bilateralFilter);
+            engine.setBands(bands);
+            engine.setLabPrecision(labPrecision);
+            engine.setThinBorders(thinBorders);
+            engine.setFillBorders(fillBorders);
+            return engine;
+        }
+    };
+
+    /**
+     * Result of one image
+     */
+    private static class Result {
+        File file;
+        int width, height;
+        long nanos;
+        // extra information printed after the throughput
+        String detail;
+        Exception error;
+    }
+
+    public static void main(String args[]) {
+        BatchSegmentation batch = new BatchSegmentation();
+        try {
+            batch.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage();
+            System.exit(2);
+        }
+
+        int failed = batch.run();
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void printUsage() {
+        System.err.println("usage: Main [options] input...");
+        System.err.println("  input             image file, directory or glob pattern (e.g. images/*.png)");
+        System.err.println("  -o, --output DIR  write <name>_segmented.png into DIR");
+        System.err.println("  -t, --threads N   number of images segmented concurrently (default: all cores)");
+        System.err.println("  -p, --filter-threads N");
+        System.err.println("                    threads shared by the filter stages of all images (default: 1)");
+        System.err.println("  --stages          also write the bilateral, edge enhanced and threshold images");
+        System.err.println("  --bilateral-radius R, --sigma-space S, --sigma-color S");
+        System.err.println("                    parameters of the bilateral filter (default: 3, 100, 10)");
+        System.err.println("  --bilateral-mode exact|grid");
+        System.err.println("                    exact filter, or constant time approximation on a bilateral grid");
+        System.err.println("  --lab-planes byte|float");
+        System.err.println("                    filter separate L, a and b planes of 8 bits, or of floats without rounding");
+        System.err.println("  --lab-table       convert Lab to RGB by a direct 2^24 entry table (64 MB)");
+        System.err.println("  --validate-color  report the deviation of the color conversion tables from the exact formulas");
+        System.err.println("  --validate-dilation compare the dilation by distance transform with the reference on random regions");
+        System.err.println("  --validate-loader only load the inputs, and report the pixels differing from ImageIO.read");
+        System.err.println("  --pyramid N       segment coarse to fine from N half resolution levels (default: 0)");
+        System.err.println("  --pyramid-report  also segment at full resolution, and report the times and the label difference");
+        System.err.println("  --thin-borders    thin the thresholded borders onto the color edges before growing the regions");
+        System.err.println("  --fill-borders    assign the border pixels to the nearest regions, leaving no borders");
+        System.err.println("  --merge N         merge adjacent regions of similar colors until N regions are left");
+        System.err.println("  --merge-distance D");
+        System.err.println("                    only merge regions whose mean colors are within the Lab distance D");
+        System.err.println("  --tile N          segment N x N tiles (e.g. 1024) in parallel, and write <name>_labels.bin into the");
+        System.err.println("                    output directory; for images larger than the heap");
+        System.err.println("  --tile-overlap N  pixels of the neighbors segmented with each tile (default: 32)");
+        System.err.println("  --off-heap        decode tiled images once into direct memory instead of decoding each tile,");
+        System.err.println("                    and filter them once there");
+        System.err.println("  --mapped DIR      as --off-heap, with the RGB planes mapped onto files in DIR");
+        System.err.println("  --bilateral-report");
+        System.err.println("                    only filter the inputs, and report the error against the exact filter");
+    }
+
+    private void parse(String[] args) throws IllegalArgumentException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-o") || arg.equals("--output")) {
+                outputDirectory = new File(value(args, ++i, arg));
+            }
+            else if (arg.equals("-t") || arg.equals("--threads")) {
+                try {
+                    threads = Integer.parseInt(value(args, ++i, arg));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid thread count: " + args[i]);
+                }
+                if (threads < 1) {
+                    throw new IllegalArgumentException("Invalid thread count: " + threads);
+                }
+            }
+            else if (arg.equals("-p") || arg.equals("--filter-threads")) {
+                filterThreads = (int) number(value(args, ++i, arg), arg);
+                if (filterThreads < 1) {
+                    throw new IllegalArgumentException("Invalid thread count: " + filterThreads);
+                }
+            }
+            else if (arg.equals("--stages")) {
+                writeStages = true;
+            }
+            else if (arg.equals("--bilateral-radius")) {
+                bilateralRadius = (int) number(value(args, ++i, arg), arg);
+            }
+            else if (arg.equals("--sigma-space")) {
+                sigmaSpace = number(value(args, ++i, arg), arg);
+            }
+            else if (arg.equals("--sigma-color")) {
+                sigmaColor = number(value(args, ++i, arg), arg);
+            }
+            else if (arg.equals("--bilateral-mode")) {
+                String mode = value(args, ++i, arg);
+                try {
+                    bilateralMode = BilateralFilter.Mode.valueOf(mode.toUpperCase(Locale.ENGLISH));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown bilateral mode: " + mode);
+                }
+            }
+            else if (arg.equals("--lab-planes")) {
+                String precision = value(args, ++i, arg);
+                try {
+                    labPrecision = LabPlanes.Precision.valueOf(precision.toUpperCase(Locale.ENGLISH));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown Lab plane precision: " + precision);
+                }
+            }
+            else if (arg.equals("--lab-table")) {
+                directLabTable = true;
+            }
+            else if (arg.equals("--validate-color")) {
+                validateColor = true;
+            }
+            else if (arg.equals("--validate-dilation")) {
+                validateDilation = true;
+            }
+            else if (arg.equals("--validate-loader")) {
+                validateLoader = true;
+            }
+            else if (arg.equals("--pyramid")) {
+                pyramidLevels = (int) number(value(args, ++i, arg), arg);
+                if (pyramidLevels < 0) {
+                    throw new IllegalArgumentException("Invalid pyramid level count: " + pyramidLevels);
+                }
+            }
+            else if (arg.equals("--pyramid-report")) {
+                pyramidReport = true;
+            }
+            else if (arg.equals("--thin-borders")) {
+                thinBorders = true;
+            }
+            else if (arg.equals("--fill-borders")) {
+                fillBorders = true;
+            }
+            else if (arg.equals("--merge")) {
+                mergeCount = (int) number(value(args, ++i, arg), arg);
+                if (mergeCount < 1) {
+                    throw new IllegalArgumentException("Invalid region count: " + mergeCount);
+                }
+            }
+            else if (arg.equals("--merge-distance")) {
+                mergeDistance = number(value(args, ++i, arg), arg);
+                if (mergeDistance < 0) {
+                    throw new IllegalArgumentException("Invalid merge distance: " + mergeDistance);
+                }
+            }
+            else if (arg.equals("--tile")) {
+                tileSize = (int) number(value(args, ++i, arg), arg);
+                if (tileSize < 1) {
+                    throw new IllegalArgumentException("Invalid tile size: " + tileSize);
+                }
+            }
+            else if (arg.equals("--tile-overlap")) {
+                tileOverlap = (int) number(value(args, ++i, arg), arg);
+                if (tileOverlap < 1) {
+                    throw new IllegalArgumentException("Invalid tile overlap: " + tileOverlap);
+                }
+            }
+            else if (arg.equals("--off-heap")) {
+                offHeap = true;
+            }
+            else if (arg.equals("--mapped")) {
+                offHeap = true;
+                mapDirectory = new File(value(args, ++i, arg));
+            }
+            else if (arg.equals("--bilateral-report")) {
+                bilateralReport = true;
+            }
+            else if (arg.startsWith("-")) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+            else {
+                inputs.addAll(expand(arg));
+            }
+        }
+
+        if (inputs.isEmpty() && !validateColor && !validateDilation) {
+            throw new IllegalArgumentException("No input images.");
+        }
+        if (tileSize > 0 && outputDirectory == null) {
+            throw new IllegalArgumentException("The tiled mode needs an output directory.");
+        }
+        if (labPrecision != null && bilateralMode == BilateralFilter.Mode.GRID) {
+            throw new IllegalArgumentException("Lab planes are only filtered by the exact bilateral filter.");
+        }
+        if (bilateralReport && tileSize > 0) {
+            throw new IllegalArgumentException("The bilateral report does not run in the tiled mode.");
+        }
+        if (isMerging() && (tileSize > 0 || pyramidReport)) {
+            throw new IllegalArgumentException("Regions are not merged in the tiled mode or by the pyramid report.");
+        }
+        if (offHeap && tileSize == 0) {
+            throw new IllegalArgumentException("Off-heap planes are only used by the tiled mode.");
+        }
+        if (offHeap && (bilateralMode == BilateralFilter.Mode.GRID || labPrecision != null || pyramidLevels > 0)) {
+            throw new IllegalArgumentException(
+                    "Off-heap planes are filtered once by the exact bilateral filter, without Lab planes or a pyramid.");
+        }
+        if (mapDirectory != null && !mapDirectory.isDirectory() && !mapDirectory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create the directory: " + mapDirectory);
+        }
+        // shared by all engines since the filter is immutable
+        bilateralFilter = new BilateralFilter(bilateralRadius, sigmaSpace, sigmaColor, bilateralMode);
+        if (filterThreads > 1) {
+            filterExecutor = Executors.newFixedThreadPool(filterThreads);
+            bands = new RowBands(filterExecutor, filterThreads);
+        }
+        if (outputDirectory != null && !outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create the output directory: " + outputDirectory);
+        }
+    }
+
+    /**
+     * Compare the pixels of each input loaded by ImageLoader with those of ImageIO.read
+     * @return The number of inputs which differ or fail
+     */
+    private int validateLoader() {
+        int failed = 0;
+        for (File file : inputs) {
+            try {
+                long differ = ImageLoader.validate(file);
+                System.out.println(file + ": " + (differ == 0 ? "OK" : differ + " pixels differ from ImageIO"));
+                if (differ != 0) {
+                    failed++;
+                }
+            } catch (IOException e) {
+                System.out.println(String.format("%s: FAILED (%s)", file, e.getMessage()));
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    private boolean isMerging() {
+        return mergeCount > 0 || mergeDistance < Double.POSITIVE_INFINITY;
+    }
+
+    private static double number(String value, String option) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+        }
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        }
+        return args[i];
+    }
+
+    /**
+     * Expand an input argument into image files
+     * @param arg A file, a directory or a glob pattern of file names
+     * @return Image files sorted by name
+     */
+    private static List<File> expand(String arg) {
+        List<File> files = new ArrayList<File>();
+        File file = new File(arg);
+
+        if (file.isFile()) {
+            files.add(file);
+        }
+        else if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File child : children) {
+                    if (child.isFile() && isImageName(child.getName())) {
+                        files.add(child);
+                    }
+                }
+            }
+        }
+        else {
+            // glob pattern of the file name part, e.g. images/test*.png
+            File parent = file.getParentFile() == null ? new File(".") : file.getParentFile();
+            Pattern pattern = globToPattern(file.getName());
+            File[] children = parent.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File child : children) {
+                    if (child.isFile() && pattern.matcher(child.getName()).matches()) {
+                        files.add(child);
+                    }
+                }
+            }
+            if (files.isEmpty()) {
+                throw new IllegalArgumentException("No such file: " + arg);
+            }
+        }
+
+        return files;
+    }
+
+    private static boolean isImageName(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return false;
+        }
+        String suffix = name.substring(dot + 1).toLowerCase(Locale.ENGLISH);
+        return Arrays.asList(ImageIO.getReaderFileSuffixes()).contains(suffix);
+    }
+
+    private static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            switch (c) {
+                case '*':
+                    regex.append(".*");
+                    break;
+                case '?':
+                    regex.append('.');
+                    break;
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Segment all inputs and print the throughput
+     * @return The number of failed images
+     */
+    public int run() {
+        try {
+            return runAll();
+        } finally {
+            if (filterExecutor != null) {
+                filterExecutor.shutdown();
+            }
+        }
+    }
+
+    private int runAll() {
+        if (directLabTable) {
+            ColorTable.setDirectLabTable(true);
+        }
+        if (validateColor) {
+            System.out.println(ColorTable.validate());
+            if (inputs.isEmpty() && !validateDilation) {
+                return 0;
+            }
+        }
+        if (validateDilation) {
+            long seed = System.nanoTime();
+            int differ = Region.validateDilation(DILATION_TRIALS, seed);
+            System.out.println(String.format(Locale.ENGLISH,
+                    "dilation: %d of %d random regions differ from the reference (seed %d)", differ, DILATION_TRIALS, seed));
+            if (differ > 0 || inputs.isEmpty()) {
+                return differ;
+            }
+        }
+
+        if (validateLoader) {
+            return validateLoader();
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+
+        long start = System.nanoTime();
+        for (final File file : inputs) {
+            if (tileSize > 0) {
+                // one image after another, whose tiles share the threads
+                FutureTask<Result> task = new FutureTask<Result>(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return segmentTiled(file, executor);
+                    }
+                });
+                task.run();
+                futures.add(task);
+                continue;
+            }
+            futures.add(executor.submit(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return bilateralReport ? compareBilateral(file) : segment(file);
+                }
+            }));
+        }
+
+        int done = 0, failed = 0;
+        long pixels = 0;
+        for (Future<Result> future : futures) {
+            Result result;
+            try {
+                result = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                // segment() reports its own errors, so this is unexpected
+                e.getCause().printStackTrace();
+                failed++;
+                continue;
+            }
+
+            if (result.error != null) {
+                System.out.println(String.format("%s: FAILED (%s)", result.file, result.error.getMessage()));
+                failed++;
+                continue;
+            }
+
+            double seconds = result.nanos / 1e9;
+            double megapixels = result.width * (double) result.height / 1e6;
+            System.out.println(String.format(Locale.ENGLISH, "%s: %dx%d %.3f s %.3f MP/s%s",
+                    result.file, result.width, result.height, seconds, megapixels / seconds,
+                    result.detail == null ? "" : " (" + result.detail + ")"));
+            done++;
+            pixels += (long) result.width * result.height;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+
+        System.out.println(String.format(Locale.ENGLISH,
+                "%d images (%d failed) in %.3f s with %d threads: %.3f images/s, %.3f MP/s",
+                done, failed, elapsed, threads, done / elapsed, pixels / 1e6 / elapsed));
+        if (bilateralReport) {
+            System.out.println(bilateralMode + " bilateral filter against EXACT: " + bilateralDifference);
+        }
+        if (pyramidReport) {
+            System.out.println(String.format(Locale.ENGLISH, "%d pyramid levels against full resolution: %.3f s against %.3f s, %s",
+                    pyramidLevels, pyramidNanos / 1e9, fullNanos / 1e9, pyramidDifference));
+        }
+
+        return failed;
+    }
+
+    private Result segment(File file) {
+        Result result = new Result();
+        result.file = file;
+
+        try {
+            RawImage image = RawImage.read(file);
+            result.width = image.getWidth();
+            result.height = image.getHeight();
+
+            SegmentationEngine engine = engines.get();
+            long start = System.nanoTime();
+            engine.segment(image, null);
+            if (isMerging()) {
+                int segmented = engine.getRegions().size();
+                result.detail = segmented + " regions merged into " + engine.mergeRegions(mergeCount, mergeDistance);
+            }
+            result.nanos = System.nanoTime() - start;
+
+            if (pyramidReport) {
+                result.detail = compareFullResolution(engine, image, result.nanos);
+            }
+            if (outputDirectory != null) {
+                write(engine, file);
+            }
+        } catch (Exception e) {
+            result.error = e;
+        }
+
+        return result;
+    }
+
+    /**
+     * Segment an image tile by tile into a label map file
+     */
+    private Result segmentTiled(File file, ExecutorService executor) {
+        Result result = new Result();
+        result.file = file;
+
+        try {
+            Dimension size = RawImage.readSize(file);
+            result.width = size.width;
+            result.height = size.height;
+
+            TiledSegmentation tiled = new TiledSegmentation(tileSize, tileOverlap, engines, executor);
+            File output = new File(outputDirectory, baseName(file) + "_labels.bin");
+            long start = System.nanoTime();
+            int regions;
+            if (offHeap) {
+                IntPlane.Arena arena = new IntPlane.Arena();
+                try {
+                    File mapTo = mapDirectory == null ? null : new File(mapDirectory, baseName(file) + "_rgb.plane");
+                    regions = tiled.segment(OffHeapImage.read(file, arena, mapTo), output);
+                } finally {
+                    arena.close();
+                }
+            }
+            else {
+                regions = tiled.segment(file, output);
+            }
+            result.nanos = System.nanoTime() - start;
+            result.detail = regions + " regions";
+        } catch (Exception e) {
+            result.error = e;
+        }
+
+        return result;
+    }
+
+    /**
+     * Segment an image at full resolution, and compare the labels with those of a coarse to fine engine
+     * @param nanos The time the coarse to fine engine took
+     * @return The detail of the result
+     * @throws IllegalStateException if too many pixels are labeled differently, which points at a broken pyramid
+     */
+    private String compareFullResolution(SegmentationEngine engine, RawImage image, long nanos) {
+        int n = image.getWidth() * image.getHeight();
+        SegmentationEngine full = fullEngines.get();
+        long start = System.nanoTime();
+        full.segment(image, null);
+        long fullResolutionNanos = System.nanoTime() - start;
+
+        LabelDifference difference = new LabelDifference();
+        difference.add(full.getLabelMap(), full.getRegions().size(), engine.getLabelMap(), engine.getRegions().size(), n);
+        pyramidDifference.add(difference);
+        synchronized (this) {
+            pyramidNanos += nanos;
+            fullNanos += fullResolutionNanos;
+        }
+        if (difference.getChangedRatio() > PYRAMID_DIFFERENCE_TOLERANCE) {
+            throw new IllegalStateException(String.format(Locale.ENGLISH,
+                    "coarse to fine segmentation labels %.2f%% of the pixels differently",
+                    difference.getChangedRatio() * 100));
+        }
+        return String.format(Locale.ENGLISH, "full resolution %.3f s, %s", fullResolutionNanos / 1e9, difference);
+    }
+
+    /**
+     * Apply the configured and the exact bilateral filter, and compare them
+     */
+    private Result compareBilateral(File file) {
+        Result result = new Result();
+        result.file = file;
+
+        try {
+            RawImage image = RawImage.read(file);
+            int w = image.getWidth(), h = image.getHeight();
+            result.width = w;
+            result.height = h;
+
+            long start = System.nanoTime();
+            int[] actual = bilateralFilter.apply(image.getLabData(), w, h, null, bands);
+            result.nanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int[] expected = bilateralFilter.exact().apply(image.getLabData(), w, h, null, bands);
+            long exactNanos = System.nanoTime() - start;
+
+            LabDifference difference = new LabDifference();
+            difference.add(expected, actual, w * h);
+            bilateralDifference.add(difference);
+            result.detail = String.format(Locale.ENGLISH, "exact %.3f s, %s", exactNanos / 1e9, difference);
+        } catch (Exception e) {
+            result.error = e;
+        }
+
+        return result;
+    }
+
+    private static String baseName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private void write(SegmentationEngine engine, File file) throws IOException {
+        String name = baseName(file);
+
+        for (Segmentation.Status st : Segmentation.Status.values()) {
+            if (st == Segmentation.Status.SEGMENTED || (writeStages && st != Segmentation.Status.ORIGINAL)) {
+                File output = new File(outputDirectory, name + "_" + st.name().toLowerCase(Locale.ENGLISH) + ".png");
+                ImageIO.write(engine.getImage(st), "png", output);
+            }
+        }
+    }
+}
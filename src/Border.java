@@ -1,23 +1,63 @@
 import ImageUtility.ColorConverter;
+import ImageUtility.ColorConverter.Lab;
+import ImageUtility.PixelSet;
+import ImageUtility.RowBands;
 
 import java.awt.*;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-
-import static ImageUtility.Util.*;
+import java.util.Iterator;
 
 /**
  * Created by kou on 2014/05/14.
  */
 public class Border extends Region{
 
+    // border pixels which touch some regions; created on demand since most of them touch nothing
     HashMap<Integer, BorderPixel> borderPixels = new HashMap<Integer, BorderPixel>();
 
+    // a border pixel is peeled only into a neighbor whose Lab distance is less than this
+    private static final int THINNING_DISTANCE = 8;
+
+    /*
+     * Zhang-Suen deletion rules of the two sub-iterations, indexed by the 8 neighbors
+     * N, NE, E, SE, S, SW, W, NW in bits 0 to 7
+     */
+    private static final boolean[] DELETABLE_FIRST = new boolean[256], DELETABLE_SECOND = new boolean[256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int b = Integer.bitCount(n), a = 0;
+            for (int k = 0; k < 8; k++) {
+                if ((n >> k & 1) == 0 && (n >> ((k + 1) & 7) & 1) == 1) {
+                    a++;
+                }
+            }
+            boolean north = (n & 1) != 0, east = (n & 4) != 0, south = (n & 16) != 0, west = (n & 64) != 0;
+            boolean removable = b >= 2 && b <= 6 && a == 1;
+            DELETABLE_FIRST[n] = removable && !(north && east && south) && !(east && south && west);
+            DELETABLE_SECOND[n] = removable && !(north && east && west) && !(north && south && west);
+        }
+    }
+
+    public Border(int canvas_width, int canvas_height) {
+        super(canvas_width, canvas_height);
+    }
+
     public void addNeighborRegion(int x, int y, RegionIdentity regionIdentity) {
-        int id = ID(x, y);
-        if (borderPixels.containsKey(id)) {
-            borderPixels.get(id).neighborRegions.add(regionIdentity);
+        if (!contains(x, y)) {
+            return;
         }
+
+        // row-major index, which unlike ID() does not wrap beyond 65535 pixels
+        int id = y * canvas_width + x;
+        BorderPixel bp = borderPixels.get(id);
+        if (bp == null) {
+            bp = new BorderPixel(x, y);
+            borderPixels.put(id, bp);
+        }
+        bp.neighborRegions.add(regionIdentity);
     }
 
     /**
@@ -25,14 +65,163 @@ public class Border extends Region{
      * @param labData The color map of the original image
      */
     public void doThinning(int[] labData) {
+        doThinning(labData, RowBands.SEQUENTIAL);
+    }
 
+    /**
+     * Thin the borders by the Zhang-Suen algorithm on a packed bitmap, band by band.
+     * Each sub-iteration marks the deletable pixels of all bands from the same bitmap and
+     * then deletes them, so the bands can run in parallel. The 8 neighbors of the pixels
+     * of a word are read from the words above, below and beside it shifted by one, and a
+     * row is scanned again only while a pixel next to it was deleted by one of the last two
+     * sub-iterations; the other rows would give the same answer as before. A pixel is
+     * deleted only if it is as close in Lab as the wall of the region growing to each of its
+     * 4-neighbors outside of the border, so the borders shrink onto the color edges and a
+     * pixel between different colors is kept, which would otherwise open the pockets of a
+     * textured border into small regions of their own. The connectivity of the borders is preserved.
+     * @param labData The color map of the original image
+     * @param bands Bands of rows processed in parallel
+     */
+    public void doThinning(final int[] labData, RowBands bands) {
+        final int w = canvas_width, h = canvas_height, stride = (w + 63) >> 6;
+        final long[] bits = new long[stride * h], deleted = new long[stride * h];
+        final PixelSet pixels = getPixels();
+        for (int i = pixels.nextPixel(0); i >= 0; i = pixels.nextPixel(i + 1)) {
+            int x = i % w, y = i / w;
+            bits[y * stride + (x >> 6)] |= 1L << x;
+        }
+
+        // the last sub-iteration which deleted a pixel in or next to each row; -1 before the first
+        final int[] changed = new int[h];
+        Arrays.fill(changed, -1);
+        final boolean[] rowDeleted = new boolean[h];
+
+        // the number of the last sub-iterations in a row which deleted nothing
+        int unchanged = 0;
+        for (int iteration = 0; unchanged < 2; iteration++) {
+            final boolean[] deletable = (iteration & 1) == 0 ? DELETABLE_FIRST : DELETABLE_SECOND;
+            final int since = iteration - 2;
+            bands.run(h, new RowBands.Task() {
+                @Override
+                public void run(int from, int to) {
+                    for (int y = from; y < to; y++) {
+                        rowDeleted[y] = changed[y] >= since && markRow(bits, deleted, stride, labData, w, h, y, deletable);
+                    }
+                }
+            });
+
+            boolean any = false;
+            for (int y = 0; y < h; y++) {
+                if (!rowDeleted[y]) {
+                    continue;
+                }
+                any = true;
+                for (int k = y * stride; k < (y + 1) * stride; k++) {
+                    bits[k] &= ~deleted[k];
+                    for (long word = deleted[k]; word != 0; word &= word - 1) {
+                        pixels.remove(((k - y * stride) << 6) + Long.numberOfTrailingZeros(word), y);
+                    }
+                }
+                for (int yy = Math.max(0, y - 1); yy <= Math.min(h - 1, y + 1); yy++) {
+                    changed[yy] = iteration;
+                }
+            }
+            unchanged = any ? 0 : unchanged + 1;
+        }
+
+        // the neighbor regions of the deleted pixels
+        for (Iterator<Integer> it = borderPixels.keySet().iterator(); it.hasNext(); ) {
+            int id = it.next(), x = id % w, y = id / w;
+            if ((bits[y * stride + (x >> 6)] >>> x & 1) == 0) {
+                it.remove();
+            }
+        }
     }
 
-    @Override
-    public void addPixel(int x, int y) {
-        super.addPixel(x, y);
+    /**
+     * Mark the deletable pixels of row y in 'deleted'
+     * @return Whether any pixel of the row is marked
+     */
+    private static boolean markRow(long[] bits, long[] deleted, int stride, int[] labData, int w, int h, int y,
+                                   boolean[] deletable) {
+        boolean marked = false;
+        int row = y * stride;
+        for (int k = 0; k < stride; k++) {
+            long mark = 0;
+            long center = bits[row + k];
+            if (center != 0) {
+                long up = y > 0 ? bits[row - stride + k] : 0, down = y + 1 < h ? bits[row + stride + k] : 0;
+
+                // the words of the neighbors on the right and on the left of each bit
+                long n = up, s = down;
+                long e = east(bits, stride, h, y, k, 0), ne = east(bits, stride, h, y, k, -1), se = east(bits, stride, h, y, k, 1);
+                long wst = west(bits, stride, h, y, k, 0), nw = west(bits, stride, h, y, k, -1), sw = west(bits, stride, h, y, k, 1);
+
+                for (long word = center; word != 0; word &= word - 1) {
+                    int b = Long.numberOfTrailingZeros(word);
+                    int neighbors = (int) (n >>> b & 1) | (int) (ne >>> b & 1) << 1 | (int) (e >>> b & 1) << 2
+                            | (int) (se >>> b & 1) << 3 | (int) (s >>> b & 1) << 4 | (int) (sw >>> b & 1) << 5
+                            | (int) (wst >>> b & 1) << 6 | (int) (nw >>> b & 1) << 7;
+                    int x = (k << 6) + b;
+                    if (deletable[neighbors] && nearColor(labData, w, h, x, y, neighbors)) {
+                        mark |= 1L << b;
+                    }
+                }
+            }
+            deleted[row + k] = mark;
+            marked |= mark != 0;
+        }
+        return marked;
+    }
+
+    /**
+     * @return The word of row y + dy whose bit b is the pixel on the right of bit b of word k of row y
+     */
+    private static long east(long[] bits, int stride, int h, int y, int k, int dy) {
+        int yy = y + dy;
+        if (yy < 0 || yy >= h) {
+            return 0;
+        }
+        int row = yy * stride;
+        return bits[row + k] >>> 1 | (k + 1 < stride ? bits[row + k + 1] << 63 : 0);
+    }
+
+    /**
+     * @return The word of row y + dy whose bit b is the pixel on the left of bit b of word k of row y
+     */
+    private static long west(long[] bits, int stride, int h, int y, int k, int dy) {
+        int yy = y + dy;
+        if (yy < 0 || yy >= h) {
+            return 0;
+        }
+        int row = yy * stride;
+        return bits[row + k] << 1 | (k > 0 ? bits[row + k - 1] >>> 63 : 0);
+    }
 
-        borderPixels.put(ID(x, y), new BorderPixel(x, y));
+    /**
+     * @param neighbors The 8 neighbors of (x, y) in bits 0 to 7: N, NE, E, SE, S, SW, W, NW
+     * @return Whether (x, y) has a 4-neighbor outside of the border, and all of those are close to it in color
+     */
+    private static boolean nearColor(int[] labData, int w, int h, int x, int y, int neighbors) {
+        int i = y * w + x, c = labData[i];
+        boolean outside = false;
+        if (y > 0 && (neighbors & 1) == 0) {
+            if (Lab.distance(labData[i - w], c) >= THINNING_DISTANCE) return false;
+            outside = true;
+        }
+        if (x + 1 < w && (neighbors & 4) == 0) {
+            if (Lab.distance(labData[i + 1], c) >= THINNING_DISTANCE) return false;
+            outside = true;
+        }
+        if (y + 1 < h && (neighbors & 16) == 0) {
+            if (Lab.distance(labData[i + w], c) >= THINNING_DISTANCE) return false;
+            outside = true;
+        }
+        if (x > 0 && (neighbors & 64) == 0) {
+            if (Lab.distance(labData[i - 1], c) >= THINNING_DISTANCE) return false;
+            outside = true;
+        }
+        return outside;
     }
 
     @Override
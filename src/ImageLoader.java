@@ -0,0 +1,292 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Decoder of image files into the packed RGB plane of a RawImage.
+ *
+ * The reader decodes into a destination image of its own default type, which
+ * is the packed plane itself for TYPE_INT_RGB, and otherwise is reused by the
+ * next image of the same type and size read by the thread. The raster of an
+ * opaque gray, palette or 8/16 bit RGB image is converted by a loop of its
+ * own, and other images are drawn by Java2D as before. The result is the
+ * same as drawing the decoded image into a TYPE_INT_RGB image.
+ *
+ * Every call uses a reader of its own and destinations are kept per thread,
+ * so any number of files can be read concurrently.
+ */
+public class ImageLoader {
+
+    // the last decoded image of each thread, which the next image of the same type and size is decoded into
+    private static final ThreadLocal<BufferedImage> destinations = new ThreadLocal<BufferedImage>();
+
+    /**
+     * Load an image file
+     * @throws IOException if the file cannot be decoded
+     */
+    public static RawImage read(File file) throws IOException {
+        return read(file, null);
+    }
+
+    /**
+     * Load a rectangle of an image file. Only the rectangle is kept in memory.
+     * @param region Rectangle within the image, or null for the whole image
+     * @throws IOException if the file cannot be decoded
+     */
+    public static RawImage read(File file, Rectangle region) throws IOException {
+        ImageInputStream input = open(file);
+        try {
+            ImageReader reader = reader(input, file);
+            try {
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (region != null) {
+                    param.setSourceRegion(region);
+                }
+                Rectangle bounds = region != null ? region : new Rectangle(reader.getWidth(0), reader.getHeight(0));
+                ImageTypeSpecifier type = reader.getImageTypes(0).next();
+
+                // decode straight into the packed plane
+                if (type.getBufferedImageType() == BufferedImage.TYPE_INT_RGB) {
+                    return new RawImage(reader.read(0, param));
+                }
+
+                BufferedImage destination = destinations.get();
+                if (isReusable(type) && destination != null && destination.getType() == type.getBufferedImageType()
+                        && destination.getWidth() == bounds.width && destination.getHeight() == bounds.height) {
+                    param.setDestination(destination);
+                }
+                BufferedImage image = reader.read(0, param);
+                if (isReusable(type)) {
+                    destinations.set(image);
+                }
+
+                int[] rgb = convert(image);
+                if (rgb != null) {
+                    return new RawImage(image.getWidth(), image.getHeight(), rgb, null);
+                }
+
+                BufferedImage intImage = new BufferedImage(image.getWidth(), image.getHeight(),
+                        BufferedImage.TYPE_INT_RGB);
+                Graphics g = intImage.getGraphics();
+                g.drawImage(image, 0, 0, null);
+                g.dispose();
+                return new RawImage(intImage);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Read the size of an image file without decoding its pixels
+     * @throws IOException if the file cannot be decoded
+     */
+    public static Dimension readSize(File file) throws IOException {
+        ImageInputStream input = open(file);
+        try {
+            ImageReader reader = reader(input, file);
+            try {
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private static ImageInputStream open(File file) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(file);
+        if (input == null) {
+            throw new IOException("Cannot open the file: " + file);
+        }
+        return input;
+    }
+
+    private static ImageReader reader(ImageInputStream input, File file) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            throw new IOException("Unsupported image format: " + file);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input, true, true);
+        return reader;
+    }
+
+    /**
+     * @return Whether images of a type can be decoded into each other; their color models are fixed
+     */
+    private static boolean isReusable(ImageTypeSpecifier type) {
+        switch (type.getBufferedImageType()) {
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_BYTE_GRAY:
+            case BufferedImage.TYPE_USHORT_GRAY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Convert the raster of an opaque gray, palette or 8/16 bit RGB image.
+     * The pixels are opaque, as those of RawImage.getImage() are read with an alpha channel.
+     * @return The packed RGB plane, or null if the image is none of them
+     */
+    private static int[] convert(BufferedImage image) {
+        ColorModel cm = image.getColorModel();
+        if (cm.hasAlpha()) {
+            return null;
+        }
+
+        int w = image.getWidth(), h = image.getHeight();
+        Raster raster = image.getRaster();
+        int[] rgb = new int[w * h];
+
+        if (cm instanceof IndexColorModel) {
+            int[] palette = new int[((IndexColorModel) cm).getMapSize()];
+            ((IndexColorModel) cm).getRGBs(palette);
+            if (image.getType() == BufferedImage.TYPE_BYTE_INDEXED && isPlain(raster)) {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                for (int i = 0; i < w * h; i++) {
+                    rgb[i] = palette[data[i] & 0xff] | 0xff000000;
+                }
+                return rgb;
+            }
+            // packed pixels of 1, 2 or 4 bits
+            if (raster.getSampleModel() instanceof MultiPixelPackedSampleModel
+                    && raster.getDataBuffer() instanceof DataBufferByte && raster.getParent() == null
+                    && raster.getDataBuffer().getOffset() == 0) {
+                MultiPixelPackedSampleModel sm = (MultiPixelPackedSampleModel) raster.getSampleModel();
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                int bits = sm.getPixelBitStride(), stride = sm.getScanlineStride(), mask = (1 << bits) - 1;
+                for (int y = 0; y < h; y++) {
+                    for (int x = 0, bit = sm.getDataBitOffset(); x < w; x++, bit += bits) {
+                        int index = data[y * stride + (bit >> 3)] >> (8 - bits - (bit & 7)) & mask;
+                        rgb[y * w + x] = palette[index] | 0xff000000;
+                    }
+                }
+                return rgb;
+            }
+            int[] samples = new int[w];
+            for (int y = 0; y < h; y++) {
+                raster.getSamples(0, y, w, 1, 0, samples);
+                for (int x = 0; x < w; x++) {
+                    rgb[y * w + x] = palette[samples[x]] | 0xff000000;
+                }
+            }
+            return rgb;
+        }
+
+        if (!isPlain(raster)) {
+            return null;
+        }
+        switch (image.getType()) {
+            case BufferedImage.TYPE_BYTE_GRAY: {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                for (int i = 0; i < w * h; i++) {
+                    rgb[i] = 0xff000000 | (data[i] & 0xff) * 0x010101;
+                }
+                return rgb;
+            }
+            case BufferedImage.TYPE_USHORT_GRAY: {
+                short[] data = ((DataBufferUShort) raster.getDataBuffer()).getData();
+                for (int i = 0; i < w * h; i++) {
+                    rgb[i] = 0xff000000 | (data[i] >> 8 & 0xff) * 0x010101;
+                }
+                return rgb;
+            }
+            case BufferedImage.TYPE_3BYTE_BGR: {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                for (int i = 0, j = 0; i < w * h; i++, j += 3) {
+                    rgb[i] = 0xff000000 | (data[j + 2] & 0xff) << 16 | (data[j + 1] & 0xff) << 8 | (data[j] & 0xff);
+                }
+                return rgb;
+            }
+        }
+
+        // 16 bit RGB, whose samples are scaled to 8 bits by the color model
+        if (cm instanceof ComponentColorModel && cm.getColorSpace().isCS_sRGB()
+                && raster.getNumBands() == 3 && raster.getDataBuffer().getDataType() == DataBuffer.TYPE_USHORT
+                && raster.getSampleModel() instanceof PixelInterleavedSampleModel) {
+            int[] offsets = ((PixelInterleavedSampleModel) raster.getSampleModel()).getBandOffsets();
+            short[] data = ((DataBufferUShort) raster.getDataBuffer()).getData();
+            int[] scale = new int[1 << 16];
+            short[] sample = new short[3];
+            for (int s = 0; s < scale.length; s++) {
+                sample[0] = (short) s;
+                scale[s] = cm.getRed(sample);
+            }
+            for (int i = 0, j = 0; i < w * h; i++, j += 3) {
+                rgb[i] = 0xff000000 | scale[data[j + offsets[0]] & 0xffff] << 16
+                        | scale[data[j + offsets[1]] & 0xffff] << 8
+                        | scale[data[j + offsets[2]] & 0xffff];
+            }
+            return rgb;
+        }
+
+        return null;
+    }
+
+    /**
+     * Compare the pixels loaded from a file with those of ImageIO.read, drawn into a TYPE_INT_RGB
+     * image and read by getRGB. getRGB of a gray image itself would apply the gamma of the gray
+     * color space, which drawing does not, and the segmentation has always read drawn pixels.
+     * @return The number of differing pixels, or all pixels if the sizes differ
+     * @throws IOException if the file cannot be decoded
+     */
+    public static long validate(File file) throws IOException {
+        BufferedImage decoded = ImageIO.read(file);
+        if (decoded == null) {
+            throw new IOException("Unsupported image format: " + file);
+        }
+        BufferedImage expected = new BufferedImage(decoded.getWidth(), decoded.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics g = expected.getGraphics();
+        g.drawImage(decoded, 0, 0, null);
+        g.dispose();
+        BufferedImage actual = read(file).getImage();
+
+        int w = expected.getWidth(), h = expected.getHeight();
+        if (actual.getWidth() != w || actual.getHeight() != h) {
+            return (long) w * h;
+        }
+        int[] expectedRow = new int[w], actualRow = new int[w];
+        long differ = 0;
+        for (int y = 0; y < h; y++) {
+            expected.getRGB(0, y, w, 1, expectedRow, 0, w);
+            actual.getRGB(0, y, w, 1, actualRow, 0, w);
+            for (int x = 0; x < w; x++) {
+                if (expectedRow[x] != actualRow[x]) {
+                    differ++;
+                }
+            }
+        }
+        return differ;
+    }
+
+    /**
+     * @return Whether the raster is a whole data buffer of rows without padding
+     */
+    private static boolean isPlain(Raster raster) {
+        SampleModel sm = raster.getSampleModel();
+        if (raster.getParent() != null || raster.getDataBuffer().getNumBanks() != 1
+                || raster.getDataBuffer().getOffset() != 0) {
+            return false;
+        }
+        if (sm instanceof ComponentSampleModel) {
+            ComponentSampleModel csm = (ComponentSampleModel) sm;
+            return csm.getPixelStride() == sm.getNumBands()
+                    && csm.getScanlineStride() == raster.getWidth() * sm.getNumBands();
+        }
+        return false;
+    }
+}
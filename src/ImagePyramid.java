@@ -0,0 +1,190 @@
+import ImageUtility.RowBands;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.util.ArrayList;
+
+/**
+ * Pyramid of half resolution levels of an image for previews and thumbnails.
+ *
+ * Level 0 is the image itself, and each level is a 2x2 box filtered copy of
+ * the previous one, built band by band only when it is first asked for.
+ * A thumbnail is scaled from the smallest level which is still as large
+ * as the thumbnail, so at most a factor of 2 is left to interpolation.
+ */
+public class ImagePyramid {
+
+    private final RowBands bands;
+
+    // ARGB pixels of the levels built so far
+    private final ArrayList<BufferedImage> levels = new ArrayList<BufferedImage>();
+
+    public ImagePyramid(BufferedImage image, RowBands bands) {
+        this.bands = bands;
+        this.levels.add(image);
+    }
+
+    /**
+     * @return The level 'level', whose size is the original size halved 'level' times (rounded up),
+     *         or the smallest level if the image is not that large
+     */
+    public synchronized BufferedImage getLevel(int level) {
+        while (levels.size() <= level) {
+            BufferedImage last = levels.get(levels.size() - 1);
+            if (last.getWidth() == 1 && last.getHeight() == 1) {
+                break;
+            }
+            levels.add(halve(last));
+        }
+        return levels.get(Math.min(level, levels.size() - 1));
+    }
+
+    /**
+     * @return The image scaled to 'height' pixels high from the nearest level
+     */
+    public BufferedImage getThumbnail(int height) {
+        BufferedImage source = getLevel(0);
+        for (int level = 1; ; level++) {
+            BufferedImage next = getLevel(level);
+            if (next == source || next.getHeight() < height) {
+                break;
+            }
+            source = next;
+        }
+
+        int width = Math.max(1, (int) Math.round(source.getWidth() * (double) height / source.getHeight()));
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = thumbnail.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(source, 0, 0, width, height, null);
+        g.dispose();
+        return thumbnail;
+    }
+
+    /**
+     * Average 2x2 pixels into one. Colors are weighted by alpha,
+     * so transparent pixels do not darken their neighbors.
+     */
+    private BufferedImage halve(final BufferedImage image) {
+        final int w = image.getWidth(), h = image.getHeight();
+        final int hw = (w + 1) / 2, hh = (h + 1) / 2;
+
+        final int[] src = pixels(image);
+        final BufferedImage half = new BufferedImage(hw, hh, BufferedImage.TYPE_INT_ARGB);
+        final int[] dst = ((DataBufferInt) half.getRaster().getDataBuffer()).getData();
+
+        bands.run(hh, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                for (int y = from; y < to; y++) {
+                    int row0 = 2 * y * w, row1 = Math.min(2 * y + 1, h - 1) * w;
+                    for (int x = 0; x < hw; x++) {
+                        int x0 = 2 * x, x1 = Math.min(2 * x + 1, w - 1);
+                        dst[y * hw + x] = average(src[row0 + x0], src[row0 + x1], src[row1 + x0], src[row1 + x1]);
+                    }
+                }
+            }
+        });
+
+        return half;
+    }
+
+    /**
+     * Average 2x2 pixels of an RGB plane into one, ignoring the alpha bits, so that
+     * the segmentation does not depend on the alpha of the displayed image
+     * @return The opaque RGB plane of ((w + 1) / 2) x ((h + 1) / 2) pixels
+     */
+    public static int[] halve(final int[] rgb, final int w, final int h, RowBands bands) {
+        final int hw = (w + 1) / 2, hh = (h + 1) / 2;
+        final int[] dst = new int[hw * hh];
+
+        bands.run(hh, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                for (int y = from; y < to; y++) {
+                    int row0 = 2 * y * w, row1 = Math.min(2 * y + 1, h - 1) * w;
+                    for (int x = 0; x < hw; x++) {
+                        int x0 = 2 * x, x1 = Math.min(2 * x + 1, w - 1);
+                        int c0 = rgb[row0 + x0], c1 = rgb[row0 + x1], c2 = rgb[row1 + x0], c3 = rgb[row1 + x1];
+                        int r = ((c0 >> 16 & 0xff) + (c1 >> 16 & 0xff) + (c2 >> 16 & 0xff) + (c3 >> 16 & 0xff)) / 4;
+                        int g = ((c0 >> 8 & 0xff) + (c1 >> 8 & 0xff) + (c2 >> 8 & 0xff) + (c3 >> 8 & 0xff)) / 4;
+                        int b = ((c0 & 0xff) + (c1 & 0xff) + (c2 & 0xff) + (c3 & 0xff)) / 4;
+                        dst[y * hw + x] = 0xff000000 | r << 16 | g << 8 | b;
+                    }
+                }
+            }
+        });
+
+        return dst;
+    }
+
+    private static int average(int c0, int c1, int c2, int c3) {
+        int a0 = c0 >>> 24, a1 = c1 >>> 24, a2 = c2 >>> 24, a3 = c3 >>> 24;
+        int alpha = a0 + a1 + a2 + a3;
+        if (alpha == 0) {
+            return 0;
+        }
+        int r = (a0 * (c0 >> 16 & 0xff) + a1 * (c1 >> 16 & 0xff) + a2 * (c2 >> 16 & 0xff) + a3 * (c3 >> 16 & 0xff)) / alpha;
+        int g = (a0 * (c0 >> 8 & 0xff) + a1 * (c1 >> 8 & 0xff) + a2 * (c2 >> 8 & 0xff) + a3 * (c3 >> 8 & 0xff)) / alpha;
+        int b = (a0 * (c0 & 0xff) + a1 * (c1 & 0xff) + a2 * (c2 & 0xff) + a3 * (c3 & 0xff)) / alpha;
+        return (alpha + 2) / 4 << 24 | r << 16 | g << 8 | b;
+    }
+
+    /**
+     * ARGB pixels of an image. Levels are read directly, palette indexed and
+     * packed int images are converted from their rasters band by band,
+     * and other images through getRGB.
+     */
+    private int[] pixels(final BufferedImage image) {
+        if (levels.indexOf(image) > 0) {
+            return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+
+        final int w = image.getWidth();
+        final int[] data = new int[w * image.getHeight()];
+        final Raster raster = image.getRaster();
+        ColorModel cm = image.getColorModel();
+        SampleModel sm = raster.getSampleModel();
+
+        if (cm instanceof IndexColorModel) {
+            final int[] palette = new int[((IndexColorModel) cm).getMapSize()];
+            ((IndexColorModel) cm).getRGBs(palette);
+            bands.run(image.getHeight(), new RowBands.Task() {
+                @Override
+                public void run(int from, int to) {
+                    int[] samples = raster.getSamples(0, from, w, to - from, 0, (int[]) null);
+                    for (int i = 0; i < samples.length; i++) {
+                        data[from * w + i] = palette[samples[i]];
+                    }
+                }
+            });
+        }
+        else if ((image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB)
+                && sm instanceof SinglePixelPackedSampleModel) {
+            final int[] src = ((DataBufferInt) raster.getDataBuffer()).getData();
+            final int stride = ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+            final int offset = raster.getDataBuffer().getOffset()
+                    - raster.getSampleModelTranslateY() * stride - raster.getSampleModelTranslateX();
+            final int opaque = cm.hasAlpha() ? 0 : 0xff000000;
+            bands.run(image.getHeight(), new RowBands.Task() {
+                @Override
+                public void run(int from, int to) {
+                    for (int y = from; y < to; y++) {
+                        for (int x = 0; x < w; x++) {
+                            data[y * w + x] = src[offset + y * stride + x] | opaque;
+                        }
+                    }
+                }
+            });
+        }
+        else {
+            bands.run(image.getHeight(), new RowBands.Task() {
+                @Override
+                public void run(int from, int to) {
+                    image.getRGB(0, from, w, to - from, data, from * w, w);
+                }
+            });
+        }
+        return data;
+    }
+}
@@ -0,0 +1,326 @@
+package ImageUtility;
+
+import java.util.Arrays;
+
+import static ImageUtility.ColorConverter.*;
+
+/**
+ * Bilateral filter driven by lookup tables.
+ * (Lab) -> (Lab)
+ *
+ * The spatial weight only depends on the tap offset and the range weight
+ * only depends on the integer squared Lab distance, so both are computed
+ * once per parameter set instead of calling Math.exp twice per tap.
+ * The result is identical to computing the weights on the fly.
+ * Lab planes are filtered tap by tap over whole rows, one channel per loop.
+ * The GRID mode approximates the filter on a bilateral grid instead,
+ * whose cost per pixel does not depend on the kernel radius.
+ * An instance is immutable and can be shared by several threads.
+ */
+public class BilateralFilter {
+
+    public static enum Mode {
+        // exact filter with lookup tables, O(r^2) per pixel
+        EXACT,
+        // approximation on a bilateral grid over (x, y, L), O(1) per pixel
+        GRID,
+    }
+
+    public static final int DEFAULT_RADIUS = 3;
+    public static final double DEFAULT_SIGMA_SPACE = 100, DEFAULT_SIGMA_COLOR = 10;
+
+    // the largest squared distance of two packed Lab colors
+    private static final int MAX_DISTANCE = 3 * 255 * 255;
+
+    private final int radius;
+    private final double sigma_space, sigma_color;
+    private final Mode mode;
+
+    // spatial weights of (2r+1) x (2r+1) taps, indexed by (i + r) * (2r + 1) + (j + r)
+    private final double[] spatialWeights;
+
+    // range weights indexed by the squared Lab distance
+    private final double[] rangeWeights;
+
+    // used instead of the tables in GRID mode
+    private final BilateralGrid grid;
+
+    public BilateralFilter() {
+        this(DEFAULT_RADIUS, DEFAULT_SIGMA_SPACE, DEFAULT_SIGMA_COLOR);
+    }
+
+    public BilateralFilter(int radius, double sigma_space, double sigma_color) {
+        this(radius, sigma_space, sigma_color, Mode.EXACT);
+    }
+
+    /**
+     * @param radius Kernel radius; the kernel has (2 * radius + 1)^2 taps
+     * @param sigma_space Sigma of the spatial gaussian
+     * @param sigma_color Sigma of the range (Lab distance) gaussian
+     * @param mode Exact or approximate filtering
+     */
+    public BilateralFilter(int radius, double sigma_space, double sigma_color, Mode mode) {
+        if (radius < 0 || sigma_space <= 0 || sigma_color <= 0) {
+            throw new IllegalArgumentException("Invalid bilateral filter parameters: radius=" + radius
+                    + ", sigma_space=" + sigma_space + ", sigma_color=" + sigma_color);
+        }
+        this.radius = radius;
+        this.sigma_space = sigma_space;
+        this.sigma_color = sigma_color;
+        this.mode = mode;
+
+        if (mode == Mode.GRID) {
+            this.grid = new BilateralGrid(radius, sigma_space, sigma_color);
+            this.spatialWeights = null;
+            this.rangeWeights = null;
+            return;
+        }
+        this.grid = null;
+
+        double i2ss1 = 0.5 / sigma_space / sigma_space, i2ss2 = 0.5 / sigma_color / sigma_color;
+
+        int size = 2 * radius + 1;
+        spatialWeights = new double[size * size];
+        for (int i = -radius; i <= radius; i++) {
+            for (int j = -radius; j <= radius; j++) {
+                double ii = i * i, jj = j * j;
+                spatialWeights[(i + radius) * size + (j + radius)] = Math.exp(-(ii + jj) * i2ss1);
+            }
+        }
+
+        rangeWeights = new double[MAX_DISTANCE + 1];
+        for (int d = 0; d <= MAX_DISTANCE; d++) {
+            rangeWeights[d] = Math.exp(-(double) d * i2ss2);
+        }
+    }
+
+    public int getRadius() {
+        return radius;
+    }
+
+    public double getSigmaSpace() {
+        return sigma_space;
+    }
+
+    public double getSigmaColor() {
+        return sigma_color;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return The exact filter with the same parameters as this filter
+     */
+    public BilateralFilter exact() {
+        return mode == Mode.EXACT ? this : new BilateralFilter(radius, sigma_space, sigma_color, Mode.EXACT);
+    }
+
+    /**
+     * Apply the filter
+     * @param data Lab data
+     * @param newData Output array of at least w * h elements, or null to allocate a new one
+     * @return Filtered Lab data
+     */
+    public int[] apply(int[] data, int w, int h, int[] newData) {
+        return apply(data, w, h, newData, RowBands.SEQUENTIAL);
+    }
+
+    /**
+     * Apply the filter band by band
+     * @param data Lab data
+     * @param newData Output array of at least w * h elements, or null to allocate a new one
+     * @param bands Bands of rows processed in parallel
+     * @return Filtered Lab data
+     */
+    public int[] apply(final int[] data, final int w, final int h, int[] newData, RowBands bands) {
+        if (mode == Mode.GRID) {
+            return grid.apply(data, w, h, newData, bands);
+        }
+        final int[] out = Filter.output(newData, w, h);
+
+        bands.run(h, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                for (int y = from; y < to; y++) {
+                    filterRow(data, h, w, h, y, out, y * w);
+                }
+            }
+        });
+
+        return out;
+    }
+
+    /**
+     * Filter row y of a window of 'rows' rows, in which row yy of the image
+     * is stored at (yy % rows) * w. A whole plane is the window of h rows.
+     * The window must hold rows y - radius to y + radius.
+     * Taps are visited in the same order as the original double loop
+     * so that the floating point sums are exactly reproduced.
+     * @param out Output array whose elements [outOffset, outOffset + w) receive the row
+     */
+    void filterRow(int[] data, int rows, int w, int h, int y, int[] out, int outOffset) {
+        filterSpan(data, rows, w, h, y, 0, w - 1, out, outOffset);
+    }
+
+    /**
+     * Filter pixels [left, right] of row y in the same way as filterRow
+     * @param out Output array whose element outOffset + x receives pixel x
+     */
+    void filterSpan(int[] data, int rows, int w, int h, int y, int left, int right, int[] out, int outOffset) {
+        int size = 2 * radius + 1;
+
+        // the rows of the kernel within the image
+        int j_from = Math.max(-radius, -y), j_to = Math.min(radius, h - 1 - y);
+        int[] rowOffsets = new int[size];
+        for (int j = j_from; j <= j_to; j++) {
+            rowOffsets[j + radius] = ((y + j) % rows) * w;
+        }
+        int centerRow = rowOffsets[radius];
+
+        for (int x = left; x <= right; x++) {
+            int center = data[centerRow + x];
+            int cl = Lab.l(center), ca = Lab.a(center), cb = Lab.b(center);
+
+            // the columns of the kernel within the image
+            int i_from = Math.max(-radius, -x), i_to = Math.min(radius, w - 1 - x);
+
+            double deno_sum = 0d;
+            double nume_sum_l = 0d, nume_sum_a = 0d, nume_sum_b = 0d;
+
+            for (int i = i_from; i <= i_to; i++) {
+                int row = (i + radius) * size + radius;
+                for (int j = j_from; j <= j_to; j++) {
+                    int c = data[rowOffsets[j + radius] + (x + i)];
+                    int dl = Lab.l(c) - cl, da = Lab.a(c) - ca, db = Lab.b(c) - cb;
+                    double S = spatialWeights[row + j] * rangeWeights[dl * dl + da * da + db * db];
+                    deno_sum += S;
+                    nume_sum_l += Lab.l(c) * S;
+                    nume_sum_a += Lab.a(c) * S;
+                    nume_sum_b += Lab.b(c) * S;
+                }
+            }
+
+            out[outOffset + x] = Lab.lab(
+                    (int) (nume_sum_l / deno_sum),
+                    (int) (nume_sum_a / deno_sum),
+                    (int) (nume_sum_b / deno_sum));
+        }
+    }
+
+    /**
+     * Apply the filter to Lab planes band by band. FLOAT planes are filtered with
+     * interpolated range weights and keep the fractions of the averages.
+     * @param out Planes of the same size and precision which receive the result
+     * @param bands Bands of rows processed in parallel
+     */
+    public void apply(final LabPlanes in, final LabPlanes out, RowBands bands) {
+        if (mode == Mode.GRID) {
+            throw new IllegalStateException("The GRID mode filters packed Lab data");
+        }
+        final int w = in.getWidth(), h = in.getHeight();
+
+        bands.run(h, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                LabPlanes.Window window = in.window(2 * radius + 1);
+                Row row = new Row(w);
+                int next = Math.max(0, from - radius);
+                for (int y = from; y < to; y++) {
+                    for (int last = Math.min(h - 1, y + radius); next <= last; next++) {
+                        window.load(next);
+                    }
+                    filterSpan(window, w, h, y, 0, w - 1, in.getPrecision() == LabPlanes.Precision.FLOAT, row);
+                    out.setRow(y, 0, w - 1, row.outL, row.outA, row.outB);
+                }
+            }
+        });
+    }
+
+    /**
+     * Accumulators and output channels of a row of planes
+     */
+    static class Row {
+        final double[] weight, deno, l, a, b;
+        final float[] outL, outA, outB;
+
+        Row(int w) {
+            weight = new double[w];
+            deno = new double[w];
+            l = new double[w];
+            a = new double[w];
+            b = new double[w];
+            outL = new float[w];
+            outA = new float[w];
+            outB = new float[w];
+        }
+    }
+
+    /**
+     * Filter pixels [left, right] of row y of a window of planes into row.outL/outA/outB.
+     * Each tap runs over the span once per channel, and every pixel still sums its taps
+     * in the order of filterSpan, so 8 bit planes give the same result.
+     * @param fractional Whether the distances and the averages keep their fractions
+     */
+    void filterSpan(LabPlanes.Window window, int w, int h, int y, int left, int right, boolean fractional,
+                    Row row) {
+        int size = 2 * radius + 1, rows = window.rows;
+        float[] L = window.l, A = window.a, B = window.b;
+        double[] weight = row.weight, deno = row.deno, numL = row.l, numA = row.a, numB = row.b;
+        Arrays.fill(deno, left, right + 1, 0d);
+        Arrays.fill(numL, left, right + 1, 0d);
+        Arrays.fill(numA, left, right + 1, 0d);
+        Arrays.fill(numB, left, right + 1, 0d);
+
+        int center = (y % rows) * w;
+        int j_from = Math.max(-radius, -y), j_to = Math.min(radius, h - 1 - y);
+        for (int i = -radius; i <= radius; i++) {
+            // pixels whose tap x + i is within the image
+            int x_from = Math.max(left, -i), x_to = Math.min(right, w - 1 - i);
+            for (int j = j_from; j <= j_to; j++) {
+                double spatial = spatialWeights[(i + radius) * size + (j + radius)];
+                int tap = ((y + j) % rows) * w + i;
+
+                for (int x = x_from; x <= x_to; x++) {
+                    float dl = L[tap + x] - L[center + x], da = A[tap + x] - A[center + x],
+                            db = B[tap + x] - B[center + x];
+                    weight[x] = spatial * range(dl * dl + da * da + db * db, fractional);
+                }
+                for (int x = x_from; x <= x_to; x++) {
+                    deno[x] += weight[x];
+                }
+                for (int x = x_from; x <= x_to; x++) {
+                    numL[x] += L[tap + x] * weight[x];
+                }
+                for (int x = x_from; x <= x_to; x++) {
+                    numA[x] += A[tap + x] * weight[x];
+                }
+                for (int x = x_from; x <= x_to; x++) {
+                    numB[x] += B[tap + x] * weight[x];
+                }
+            }
+        }
+
+        for (int x = left; x <= right; x++) {
+            row.outL[x] = average(numL[x], deno[x], fractional);
+            row.outA[x] = average(numA[x], deno[x], fractional);
+            row.outB[x] = average(numB[x], deno[x], fractional);
+        }
+    }
+
+    /**
+     * Range weight of a squared distance, interpolated between the table entries if fractional
+     */
+    private double range(float distance, boolean fractional) {
+        if (!fractional) {
+            return rangeWeights[(int) distance];
+        }
+        int d = Math.min((int) distance, MAX_DISTANCE - 1);
+        return rangeWeights[d] + (rangeWeights[d + 1] - rangeWeights[d]) * (distance - d);
+    }
+
+    private static float average(double numerator, double denominator, boolean fractional) {
+        return fractional ? (float) (numerator / denominator) : (int) (numerator / denominator);
+    }
+}
@@ -0,0 +1,157 @@
+package ImageUtility;
+
+import static ImageUtility.ColorConverter.*;
+
+/**
+ * Approximate bilateral filter on a downsampled bilateral grid over (x, y, L).
+ * (Lab) -> (Lab)
+ *
+ * Every pixel is splatted into a coarse 3D grid, the grid is blurred by
+ * a [1 2 1] kernel along each axis, and the result is sliced back by
+ * trilinear interpolation. The cost per pixel is constant regardless of
+ * the kernel radius. Since the range axis is L only, colors with the same
+ * lightness are mixed more than by the exact filter.
+ */
+class BilateralGrid {
+
+    // variance added by trilinear splatting, slicing (1/6 each) and the [1 2 1] blur (1/2), in cells^2
+    private static final double CELL_VARIANCE = 1d / 6d + 1d / 6d + 0.5;
+
+    private final double spatialCell, rangeCell;
+
+    /**
+     * @param radius Kernel radius of the exact filter
+     * @param sigma_space Sigma of the spatial gaussian
+     * @param sigma_color Sigma of the range gaussian
+     */
+    BilateralGrid(int radius, double sigma_space, double sigma_color) {
+        /*
+         * The exact kernel is a gaussian truncated at 'radius', so its spatial
+         * variance is at most that of a (2r+1) box. Choose the cell sizes
+         * so that the grid reproduces the same variances.
+         */
+        double boxVariance = radius * (radius + 1) / 3d;
+        double spatialVariance = Math.min(boxVariance, sigma_space * sigma_space);
+        this.spatialCell = Math.max(1d, Math.sqrt(spatialVariance / CELL_VARIANCE));
+        this.rangeCell = Math.max(1d, sigma_color / Math.sqrt(CELL_VARIANCE));
+    }
+
+    /**
+     * Apply the filter. Splatting and blurring are sequential, slicing runs band by band.
+     */
+    int[] apply(final int[] data, final int w, int h, int[] newData, RowBands bands) {
+        final int[] out = Filter.output(newData, w, h);
+
+        int maxL = 0;
+        for (int i = 0; i < w * h; i++) {
+            maxL = Math.max(maxL, Lab.l(data[i]));
+        }
+
+        // one cell of padding on each side for the blur and the interpolation
+        final int gw = (int) Math.ceil((w - 1) / spatialCell) + 3;
+        final int gh = (int) Math.ceil((h - 1) / spatialCell) + 3;
+        final int gd = (int) Math.ceil(maxL / rangeCell) + 3;
+
+        // 4 channels (L, a, b, weight) interleaved per cell, indexed by ((gy * gw + gx) * gd + gz) * 4
+        final float[] grid = new float[gw * gh * gd * 4];
+
+        /*
+         * Splat
+         */
+        for (int y = 0; y < h; y++) {
+            double fy = y / spatialCell + 1;
+            int gy = (int) fy;
+            float ty = (float) (fy - gy);
+            for (int x = 0; x < w; x++) {
+                int c = data[y * w + x];
+                double fx = x / spatialCell + 1, fz = Lab.l(c) / rangeCell + 1;
+                int gx = (int) fx, gz = (int) fz;
+                float tx = (float) (fx - gx), tz = (float) (fz - gz);
+                float l = Lab.l(c), a = Lab.a(c), b = Lab.b(c);
+
+                for (int k = 0; k < 8; k++) {
+                    int dx = k & 1, dy = (k >> 1) & 1, dz = k >> 2;
+                    float weight = (dx == 0 ? 1 - tx : tx) * (dy == 0 ? 1 - ty : ty) * (dz == 0 ? 1 - tz : tz);
+                    int cell = (((gy + dy) * gw + gx + dx) * gd + gz + dz) * 4;
+                    grid[cell] += l * weight;
+                    grid[cell + 1] += a * weight;
+                    grid[cell + 2] += b * weight;
+                    grid[cell + 3] += weight;
+                }
+            }
+        }
+
+        /*
+         * Blur along z, x and y
+         */
+        int[] dims = {gh, gw, gd};
+        int[] strides = {gw * gd * 4, gd * 4, 4};
+        for (int axis = 2; axis >= 0; axis--) {
+            blur(grid, dims, strides, axis);
+        }
+
+        /*
+         * Slice
+         */
+        bands.run(h, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                for (int y = from; y < to; y++) {
+                    double fy = y / spatialCell + 1;
+                    int gy = (int) fy;
+                    float ty = (float) (fy - gy);
+                    for (int x = 0; x < w; x++) {
+                        int c = data[y * w + x];
+                        double fx = x / spatialCell + 1, fz = Lab.l(c) / rangeCell + 1;
+                        int gx = (int) fx, gz = (int) fz;
+                        float tx = (float) (fx - gx), tz = (float) (fz - gz);
+
+                        float l = 0, a = 0, b = 0, sum = 0;
+                        for (int k = 0; k < 8; k++) {
+                            int dx = k & 1, dy = (k >> 1) & 1, dz = k >> 2;
+                            float weight = (dx == 0 ? 1 - tx : tx) * (dy == 0 ? 1 - ty : ty) * (dz == 0 ? 1 - tz : tz);
+                            int cell = (((gy + dy) * gw + gx + dx) * gd + gz + dz) * 4;
+                            l += grid[cell] * weight;
+                            a += grid[cell + 1] * weight;
+                            b += grid[cell + 2] * weight;
+                            sum += grid[cell + 3] * weight;
+                        }
+
+                        out[y * w + x] = sum > 0 ? Lab.lab((int) (l / sum), (int) (a / sum), (int) (b / sum)) : c;
+                    }
+                }
+            }
+        });
+
+        return out;
+    }
+
+    /**
+     * Blur the grid by [1 2 1] / 4 along one axis in place
+     * @param dims Number of cells of each axis
+     * @param strides Distance of neighboring cells of each axis
+     */
+    private static void blur(float[] grid, int[] dims, int[] strides, int axis) {
+        int o1 = (axis + 1) % 3, o2 = (axis + 2) % 3;
+        int step = strides[axis];
+        float[] prev = new float[4];
+
+        for (int i1 = 0; i1 < dims[o1]; i1++) {
+            for (int i2 = 0; i2 < dims[o2]; i2++) {
+                int start = i1 * strides[o1] + i2 * strides[o2];
+                for (int ch = 0; ch < 4; ch++) {
+                    prev[ch] = 0;
+                }
+                for (int i = 0; i < dims[axis]; i++) {
+                    int cell = start + i * step;
+                    for (int ch = 0; ch < 4; ch++) {
+                        float current = grid[cell + ch];
+                        float next = i + 1 < dims[axis] ? grid[cell + step + ch] : 0;
+                        grid[cell + ch] = (prev[ch] + 2 * current + next) * 0.25f;
+                        prev[ch] = current;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package ImageUtility;
+
+import java.util.Locale;
+
+import static ImageUtility.ColorConverter.*;
+
+/**
+ * Table driven RGB <-> Lab conversion.
+ *
+ * rgb_to_lab looks up the sRGB gamma of each 8 bit channel in a 256 entry
+ * table and takes cube roots from an interpolated table refined by one
+ * Newton step, so it gives the same results as ColorConverter.rgb_to_lab.
+ * lab_to_rgb looks up the lightness term by L and encodes the gamma by an
+ * interpolated table, which may differ from ColorConverter.lab_to_rgb by one
+ * level. Optionally lab_to_rgb uses a direct table of all 2^24 packed Lab
+ * values (64 MB), which is exact. validate() reports the deviations.
+ */
+public class ColorTable {
+
+    // linear RGB * 100 of an 8 bit sRGB value
+    private static final double[] LINEAR = new double[256];
+
+    // cube roots of [0, CBRT_MAX]
+    private static final int CBRT_SIZE = 4096;
+    private static final double CBRT_MAX = 1.01;
+    private static final double[] CBRT = new double[CBRT_SIZE + 2];
+
+    // Y / 100 of a lightness L
+    private static final double[] LIGHTNESS_Y = new double[256];
+
+    // 1.055 * c^(1/2.4) - 0.055 of c in [0, 1]
+    private static final int GAMMA_SIZE = 4096;
+    private static final double[] GAMMA = new double[GAMMA_SIZE + 2];
+
+    // packed Lab (24 bits) -> RGB, or null if disabled
+    private static volatile int[] directLabTable = null;
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            double c = i / 255d;
+            LINEAR[i] = ( c > 0.04045 ? Math.pow((c+0.055)/1.055, 2.4) : c/12.92 ) * 100d;
+        }
+        for (int i = 0; i < CBRT.length; i++) {
+            CBRT[i] = Math.pow(i * CBRT_MAX / CBRT_SIZE, 1d/3d);
+        }
+        for (int l = 0; l < 256; l++) {
+            LIGHTNESS_Y[l] = ( l > Kappa*Epsilon ? Math.pow((l+16d)/116d, 3d) : l/Kappa ) * WhiteReference.Y / 100d;
+        }
+        for (int i = 0; i < GAMMA.length; i++) {
+            double c = i / (double) GAMMA_SIZE;
+            GAMMA[i] = 1.055*Math.pow(c, 1d/2.4)-0.055;
+        }
+    }
+
+    /**
+     * Enable or disable the direct 2^24 entry table for lab_to_rgb.
+     * Building the table takes a while, so it is done only once.
+     */
+    public static synchronized void setDirectLabTable(boolean enabled) {
+        if (!enabled) {
+            directLabTable = null;
+            return;
+        }
+        if (directLabTable == null) {
+            final int[] table = new int[1 << 24];
+            // 4096 rows of 4096 entries
+            RowBands.shared().run(1 << 12, new RowBands.Task() {
+                @Override
+                public void run(int from, int to) {
+                    for (int i = from << 12; i < to << 12; i++) {
+                        table[i] = ColorConverter.lab_to_rgb(i);
+                    }
+                }
+            });
+            directLabTable = table;
+        }
+    }
+
+    public static boolean isDirectLabTable() {
+        return directLabTable != null;
+    }
+
+    /**
+     * Cube root of t in [0, CBRT_MAX] by interpolation and one Newton step
+     */
+    private static double cbrt(double t) {
+        if (t >= CBRT_MAX) {
+            return Math.pow(t, 1d/3d);
+        }
+        double f = t * (CBRT_SIZE / CBRT_MAX);
+        int i = (int) f;
+        double y = CBRT[i] + (CBRT[i + 1] - CBRT[i]) * (f - i);
+        // Newton step for y^3 = t
+        return y - (y * y * y - t) / (3 * y * y);
+    }
+
+    private static double f(double t) {
+        return t > Epsilon ? cbrt(t) : (Kappa*t+16d)/116d;
+    }
+
+    /**
+     * sRGB gamma encoding of a linear value, scaled to [0, 255]
+     */
+    private static double encode(double c) {
+        if (c <= 0.0031308) {
+            return 12.92 * c * 255d;
+        }
+        if (c >= 1d) {
+            return 255d;
+        }
+        double f = c * GAMMA_SIZE;
+        int i = (int) f;
+        return (GAMMA[i] + (GAMMA[i + 1] - GAMMA[i]) * (f - i)) * 255d;
+    }
+
+    public static int rgb_to_lab(int rgb) {
+        double r = LINEAR[RGB.r(rgb)], g = LINEAR[RGB.g(rgb)], b = LINEAR[RGB.b(rgb)];
+
+        // rgb to xyz
+        double x = (r * 0.412391 + g * 0.357584 + b * 0.180481) / WhiteReference.X;
+        double y = (r * 0.212639 + g * 0.715169 + b * 0.072192) / WhiteReference.Y;
+        double z = (r * 0.019331 + g * 0.119195 + b * 0.950532) / WhiteReference.Z;
+
+        // xyz to lab
+        x = f(x);
+        y = f(y);
+        z = f(z);
+
+        return Lab.lab(
+                (int)Math.round(Math.max(0, (116d*y-16d))),
+                (int)Math.round(500d * (x - y)) + 128,
+                (int)Math.round(200d * (y - z)) + 128);
+    }
+
+    /**
+     * Convert an RGB color into Lab without rounding; a and b are offset by 128 as in the packed form
+     * @param lab Output array receiving L, a and b at [offset, offset + 3)
+     */
+    public static void rgb_to_lab(int rgb, float[] lab, int offset) {
+        double r = LINEAR[RGB.r(rgb)], g = LINEAR[RGB.g(rgb)], b = LINEAR[RGB.b(rgb)];
+
+        double x = f((r * 0.412391 + g * 0.357584 + b * 0.180481) / WhiteReference.X);
+        double y = f((r * 0.212639 + g * 0.715169 + b * 0.072192) / WhiteReference.Y);
+        double z = f((r * 0.019331 + g * 0.119195 + b * 0.950532) / WhiteReference.Z);
+
+        lab[offset] = (float) Math.max(0, 116d*y-16d);
+        lab[offset + 1] = (float) (500d * (x - y) + 128);
+        lab[offset + 2] = (float) (200d * (y - z) + 128);
+    }
+
+    public static int lab_to_rgb(int lab) {
+        int[] table = directLabTable;
+        if (table != null) {
+            return table[lab & 0xffffff];
+        }
+
+        int l = Lab.l(lab);
+        double a = Lab.a(lab)-128, b = Lab.b(lab)-128;
+
+        // lab to xyz
+        double fy = (l + 16d) / 116d;
+        double x = a / 500d + fy;
+        double z = fy - b / 200d;
+        double x3 = x * x * x, z3 = z * z * z;
+
+        x = ( x3 > Epsilon ? x3 : (x-16d/116d)/7.787 ) * WhiteReference.X / 100d;
+        double y = LIGHTNESS_Y[l];
+        z = ( z3 > Epsilon ? z3 : (z-16d/116d)/7.787 ) * WhiteReference.Z / 100d;
+
+        // xyz to rgb
+        double _r = encode(x * 3.240970 + y * -1.537383 + z * -0.498611);
+        double _g = encode(x * -0.969244 + y * 1.875968 + z * 0.041555);
+        double _b = encode(x * 0.055630 + y * -0.203977 + z * 1.056972);
+
+        if( _r < 0d ) _r = 0d;
+        if( _g < 0d ) _g = 0d;
+        if( _b < 0d ) _b = 0d;
+
+        return RGB.rgb((int)_r, (int)_g, (int)_b);
+    }
+
+    /**
+     * Convert RGB data [from, to) into Lab
+     */
+    public static void rgb_to_lab(int[] rgb, int[] lab, int from, int to) {
+        for (int i = from; i < to; i++) {
+            lab[i] = rgb_to_lab(rgb[i]);
+        }
+    }
+
+    /**
+     * Convert Lab data [from, to) into RGB
+     */
+    public static void lab_to_rgb(int[] lab, int[] rgb, int from, int to) {
+        int[] table = directLabTable;
+        if (table != null) {
+            for (int i = from; i < to; i++) {
+                rgb[i] = table[lab[i] & 0xffffff];
+            }
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            rgb[i] = lab_to_rgb(lab[i]);
+        }
+    }
+
+    /**
+     * Compare the tables with the exact formulas of ColorConverter over all 2^24 inputs
+     * @return A report of the maximum deviations per channel
+     */
+    public static String validate() {
+        int[] rgbToLab = new int[4], labToRgb = new int[4];
+        for (int c = 0; c < 1 << 24; c++) {
+            deviate(rgbToLab, ColorConverter.rgb_to_lab(c), rgb_to_lab(c));
+            deviate(labToRgb, ColorConverter.lab_to_rgb(c), lab_to_rgb(c));
+        }
+
+        return String.format(Locale.ENGLISH,
+                "rgb_to_lab: max |dL| %d |da| %d |db| %d, %d of 2^24 colors differ; " +
+                "lab_to_rgb%s: max |dr| %d |dg| %d |db| %d, %d of 2^24 colors differ",
+                rgbToLab[0], rgbToLab[1], rgbToLab[2], rgbToLab[3],
+                isDirectLabTable() ? " (direct table)" : "",
+                labToRgb[0], labToRgb[1], labToRgb[2], labToRgb[3]);
+    }
+
+    /**
+     * Accumulate the maximum deviations of 3 channels and the number of differing colors
+     */
+    private static void deviate(int[] max, int expected, int actual) {
+        if (expected == actual) {
+            return;
+        }
+        max[3]++;
+        for (int ch = 0; ch < 3; ch++) {
+            int shift = 16 - ch * 8;
+            int d = Math.abs((expected >> shift & 0xff) - (actual >> shift & 0xff));
+            if (d > max[ch]) max[ch] = d;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package ImageUtility;
+
+import java.util.Arrays;
+
+/**
+ * Two pass labeling of the 4-connected components of a pixel set.
+ *
+ * The first pass runs on bands of rows in parallel. Every run of the set
+ * is linked to the runs above it in a union-find forest stored in the label
+ * array itself, indexed by pixel and always pointing to a smaller index,
+ * so each band only touches its own part of the array. The runs are found
+ * word by word, so the work follows the pixels of the set, not the canvas.
+ * The seams between the bands are then merged, and the second pass
+ * replaces the trees by labels 0, 1, 2, ... in one raster scan.
+ * Components are numbered in the raster order of their first pixels,
+ * which is the order in which repeated flood filling from the first
+ * remaining pixel would find them.
+ */
+public class ConnectedComponents {
+
+    /**
+     * Label the components
+     * @param set Pixels to be labeled
+     * @param labels Output array of at least w * h elements which receives the label of each pixel of the set.
+     *               The elements of the other pixels are not written.
+     * @param bands Bands of rows processed in parallel
+     * @return The number of components
+     */
+    public static int label(final PixelSet set, final int[] labels, RowBands bands) {
+        final int w = set.getCanvasWidth(), h = set.getCanvasHeight();
+        if (labels.length < w * h) {
+            throw new IllegalArgumentException("The label array must hold " + w + " x " + h + " pixels");
+        }
+
+        // the first rows of the bands, whose upper neighbors are linked at the seams
+        final boolean[] bandTop = new boolean[h];
+
+        /*
+         * First pass: link the runs of the set within each band; only the rows holding pixels are visited
+         */
+        bands.run(h, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                bandTop[from] = true;
+                for (int i = set.nextPixel(from * w), end; i >= 0 && i < to * w; i = set.nextPixel(end)) {
+                    end = set.runEnd(i);
+                    int y = i / w;
+                    Arrays.fill(labels, i, end, i);
+                    if (y > from) {
+                        linkUpper(set, labels, i, end, w);
+                    }
+                }
+            }
+        });
+
+        /*
+         * Merge the seams
+         */
+        for (int y = 1; y < h; y++) {
+            if (!bandTop[y]) {
+                continue;
+            }
+            for (int i = set.nextPixel(y * w), end; i >= 0 && i < (y + 1) * w; i = set.nextPixel(end)) {
+                end = set.runEnd(i);
+                linkUpper(set, labels, i, end, w);
+            }
+        }
+
+        /*
+         * Second pass: a parent always precedes its children, so it has got its final label
+         */
+        int count = 0;
+        for (int i = set.nextPixel(0), end; i >= 0; i = set.nextPixel(end)) {
+            end = set.runEnd(i);
+            for (int j = i; j < end; j++) {
+                int parent = labels[j];
+                labels[j] = parent == j ? count++ : labels[parent];
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Link the run [from, end) to the pixels of the set above it
+     */
+    private static void linkUpper(PixelSet set, int[] labels, int from, int end, int w) {
+        int y = from / w;
+        boolean above = false;
+        for (int i = from; i < end; i++) {
+            // once per run of the upper row
+            boolean contains = set.contains(i % w, y - 1);
+            if (contains && !above) {
+                union(labels, i, i - w);
+            }
+            above = contains;
+        }
+    }
+
+    private static int find(int[] parent, int i) {
+        int root = i;
+        while (parent[root] != root) {
+            root = parent[root];
+        }
+
+        // compress the path
+        while (parent[i] != root) {
+            int next = parent[i];
+            parent[i] = root;
+            i = next;
+        }
+        return root;
+    }
+
+    /**
+     * Merge two trees under the smaller root
+     */
+    private static void union(int[] parent, int a, int b) {
+        int ra = find(parent, a), rb = find(parent, b);
+        if (ra < rb) {
+            parent[rb] = ra;
+        }
+        else if (rb < ra) {
+            parent[ra] = rb;
+        }
+    }
+}
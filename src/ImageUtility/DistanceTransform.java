@@ -0,0 +1,132 @@
+package ImageUtility;
+
+import java.util.Arrays;
+
+/**
+ * Exact Euclidean distance transform of a pixel set in linear time
+ * (Meijster, Roerdink and Hesselink).
+ *
+ * Every pixel receives the squared distance to the nearest pixel of the set,
+ * so the set dilated by a disk of radius r is exactly the pixels whose value
+ * is at most r * r, and one transform serves every radius.
+ * The first pass finds the vertical distance within each column, and the
+ * second takes the lower envelope of the parabolas along each row.
+ */
+public class DistanceTransform {
+
+    /**
+     * Compute the squared distances
+     * @param set Pixels whose distance is 0
+     * @param newData Output array of at least w * h elements, or null to allocate a new one
+     * @param bands Bands processed in parallel
+     * @return Squared distance of every pixel; Integer.MAX_VALUE if the set is empty
+     */
+    public static int[] apply(final PixelSet set, int[] newData, RowBands bands) {
+        final int w = set.getCanvasWidth(), h = set.getCanvasHeight();
+        final int[] out = Filter.output(newData, w, h);
+
+        // larger than any distance within the canvas
+        final int infinity = w + h;
+
+        /*
+         * Vertical distances, swept down and up over bands of columns
+         */
+        bands.run(w, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                for (int y = 0; y < h; y++) {
+                    int row = y * w;
+                    for (int x = from; x < to; x++) {
+                        if (set.contains(x, y)) {
+                            out[row + x] = 0;
+                        }
+                        else {
+                            out[row + x] = y == 0 ? infinity : Math.min(infinity, out[row - w + x] + 1);
+                        }
+                    }
+                }
+                for (int y = h - 2; y >= 0; y--) {
+                    int row = y * w;
+                    for (int x = from; x < to; x++) {
+                        int below = out[row + w + x] + 1;
+                        if (below < out[row + x]) {
+                            out[row + x] = below;
+                        }
+                    }
+                }
+            }
+        });
+
+        /*
+         * Lower envelope of the parabolas (x - i)^2 + g(i)^2 along each row
+         */
+        bands.run(h, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                long[] gg = new long[w];
+                int[] s = new int[w], t = new int[w];
+
+                for (int y = from; y < to; y++) {
+                    int row = y * w;
+                    for (int x = 0; x < w; x++) {
+                        long g = out[row + x];
+                        gg[x] = g * g;
+                    }
+
+                    // s: apexes of the envelope, t: where each parabola starts to be the lowest
+                    int q = 0;
+                    s[0] = 0;
+                    t[0] = 0;
+                    for (int u = 1; u < w; u++) {
+                        while (q >= 0 && f(t[q], s[q], gg) > f(t[q], u, gg)) {
+                            q--;
+                        }
+                        if (q < 0) {
+                            q = 0;
+                            s[0] = u;
+                        }
+                        else {
+                            long start = 1 + separation(s[q], u, gg);
+                            if (start < w) {
+                                q++;
+                                s[q] = u;
+                                t[q] = (int) start;
+                            }
+                        }
+                    }
+
+                    for (int u = w - 1; u >= 0; u--) {
+                        out[row + u] = (int) Math.min(Integer.MAX_VALUE, f(u, s[q], gg));
+                        if (u == t[q]) {
+                            q--;
+                        }
+                    }
+                }
+            }
+        });
+
+        if (set.isEmpty()) {
+            Arrays.fill(out, 0, w * h, Integer.MAX_VALUE);
+        }
+        return out;
+    }
+
+    private static long f(int x, int i, long[] gg) {
+        long d = x - i;
+        return d * d + gg[i];
+    }
+
+    /**
+     * The first x at which the parabola of u is not above that of i (i < u), minus 1
+     */
+    private static long separation(int i, int u, long[] gg) {
+        long n = (long) u * u - (long) i * i + gg[u] - gg[i];
+        long d = 2L * (u - i);
+        long q = n / d;
+        // round toward negative infinity
+        if (n % d != 0 && n < 0) {
+            q--;
+        }
+        return q;
+    }
+}
@@ -2,6 +2,7 @@ package ImageUtility;
 
 import java.awt.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import static ImageUtility.ColorConverter.*;
 
@@ -10,46 +11,71 @@ import static ImageUtility.ColorConverter.*;
  */
 public class Filter {
 
+    /**
+     * Return 'buffer' if it can hold w * h pixels, otherwise a new array
+     */
+    static int[] output(int[] buffer, int w, int h) {
+        if (buffer == null || buffer.length < w * h) {
+            return new int[w * h];
+        }
+        return buffer;
+    }
+
     /**
      * Apply a bilateral filter
      * (Lab) -> (Lab)
      */
     public static int[] bilateralFilter(int[] data, int w, int h) {
-        int[] newData = new int[w * h];
-
-        // apply filter
-        int kernel = 3;            // kernel size
-        double s1 = 100, s2 = 10;    // sigma values
-        double i2ss1 = 0.5 / s1 / s1, i2ss2 = 0.5 / s2 / s2;
-
-        for (int x = 0; x < w; x++) {
-            for (int y = 0; y < h; y++) {
-                double deno_sum = 0d;
-                double nume_sum_l = 0d, nume_sum_a = 0d, nume_sum_b = 0d;
-
-                for (int i = -kernel; i <= kernel; i++) {
-                    for (int j = -kernel; j <= kernel; j++) {
-                        int xx = x + i, yy = y + j;
-                        if (xx >= 0 && xx < w && yy >= 0 && yy < h) {
-                            int c = data[yy * w + xx];
-                            double ii = i * i, jj = j * j;
-                            double S = Math.exp(-(ii + jj) * i2ss1) * Math.exp(-Lab.distance_not_sqrt(data[y * w + x], c) * i2ss2);
-                            deno_sum += S;
-                            nume_sum_l += Lab.l(c) * S;
-                            nume_sum_a += Lab.a(c) * S;
-                            nume_sum_b += Lab.b(c) * S;
-                        }
-                    }
-                }
+        return bilateralFilter(data, w, h, null);
+    }
 
-                newData[y * w + x] = Lab.lab(
-                                (int) (nume_sum_l / deno_sum),
-                                (int) (nume_sum_a / deno_sum),
-                                (int) (nume_sum_b / deno_sum));
-            }
-        }
+    /**
+     * Apply a bilateral filter into a reused array
+     * (Lab) -> (Lab)
+     * @param newData Output array of at least w * h elements, or null to allocate a new one
+     */
+    public static int[] bilateralFilter(int[] data, int w, int h, int[] newData) {
+        return defaultBilateralFilter().apply(data, w, h, newData);
+    }
+
+    /**
+     * Apply a bilateral filter band by band
+     * (Lab) -> (Lab)
+     * @param newData Output array of at least w * h elements, or null to allocate a new one
+     * @param bands Bands of rows processed in parallel
+     */
+    public static int[] bilateralFilter(int[] data, int w, int h, int[] newData, RowBands bands) {
+        return defaultBilateralFilter().apply(data, w, h, newData, bands);
+    }
+
+    /**
+     * Apply a bilateral filter with the given parameters
+     * (Lab) -> (Lab)
+     * @param radius Kernel radius
+     * @param sigma_space Sigma of the spatial gaussian
+     * @param sigma_color Sigma of the range (Lab distance) gaussian
+     */
+    public static int[] bilateralFilter(int[] data, int w, int h, int radius, double sigma_space, double sigma_color) {
+        return bilateralFilter(data, w, h, radius, sigma_space, sigma_color, BilateralFilter.Mode.EXACT);
+    }
+
+    /**
+     * Apply a bilateral filter with the given parameters and mode
+     * (Lab) -> (Lab)
+     * @param mode EXACT, or GRID for the constant time approximation
+     */
+    public static int[] bilateralFilter(int[] data, int w, int h, int radius, double sigma_space, double sigma_color,
+                                        BilateralFilter.Mode mode) {
+        return new BilateralFilter(radius, sigma_space, sigma_color, mode).apply(data, w, h, null);
+    }
+
+    private static BilateralFilter defaultBilateral;
 
-        return newData;
+    private static synchronized BilateralFilter defaultBilateralFilter() {
+        if (defaultBilateral == null) {
+            defaultBilateral = new BilateralFilter();
+        }
+        return defaultBilateral;
     }
 
     /**
@@ -57,10 +83,64 @@ public class Filter {
      * (RGB) -> (RGB)
      */
     public static int[] LoGFilter(int[] data, int w, int h) {
-        int[] newData = new int[w * h];
+        return LoGFilter(data, w, h, null);
+    }
+
+    /**
+     * Apply a laplacian of gaussian filter into a reused array
+     * (RGB) -> (RGB)
+     * @param newData Output array of at least w * h elements, or null to allocate a new one
+     */
+    public static int[] LoGFilter(int[] data, int w, int h, int[] newData) {
+        return LoGFilter(data, w, h, newData, RowBands.SEQUENTIAL);
+    }
 
-        // apply filter
-        int kernel_size = 3;        // kernel size
+    /**
+     * Apply a laplacian of gaussian filter band by band
+     * (RGB) -> (RGB)
+     *
+     * The luminance of every pixel is computed once into a plane, and each
+     * row is convolved tap by tap into a row of accumulators. The inner loops
+     * run over contiguous pixels without bounds checks, which the JIT can
+     * vectorize, while every pixel still sums its taps in the original order.
+     * @param newData Output array of at least w * h elements, or null to allocate a new one
+     * @param bands Bands of rows processed in parallel
+     */
+    public static int[] LoGFilter(final int[] data, final int w, final int h, int[] newData, RowBands bands) {
+        final int[] out = output(newData, w, h);
+
+        // luminance plane; the values are integers, so float holds them exactly
+        final float[] luminance = new float[w * h];
+        bands.run(h, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from * w; i < to * w; i++) {
+                    luminance[i] = RGB.luminance(data[i]);
+                }
+            }
+        });
+
+        bands.run(h, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                double[] sum = new double[w];
+                for (int y = from; y < to; y++) {
+                    LoGRow(luminance, h, w, h, y, sum, out, y * w);
+                }
+            }
+        });
+
+        return out;
+    }
+
+    // half size of the LoG kernel
+    static final int LOG_KERNEL_SIZE = 3;
+
+    // LoG kernel indexed by [i (x offset) + size][j (y offset) + size]
+    private static final double[][] LOG_KERNEL = createLoGKernel();
+
+    private static double[][] createLoGKernel() {
+        final int kernel_size = LOG_KERNEL_SIZE;        // kernel size
         double s = 1.1;                // sigma value
         double i2ss = 0.5 / s / s, issss = 1d / s / s / s / s;
 
@@ -71,24 +151,48 @@ public class Filter {
                 kernel[i + kernel_size][j + kernel_size] = (ss - 1d) * Math.exp(-ss) * issss / Math.PI;
             }
         }
+        return kernel;
+    }
 
-        for (int x = 0; x < w; x++) {
-            for (int y = 0; y < h; y++) {
-                double sum = 0d;
-                for (int i = -kernel_size; i <= kernel_size; i++) {
-                    for (int j = -kernel_size; j <= kernel_size; j++) {
-                        int xx = x + i, yy = y + j;
-                        if (xx >= 0 && xx < w && yy >= 0 && yy < h) {
-                            sum += kernel[i + kernel_size][j + kernel_size] * RGB.luminance(data[yy * w + xx]);
-                        }
-                    }
-                }
+    /**
+     * Convolve row y of a luminance window of 'rows' rows, in which row yy
+     * is stored at (yy % rows) * w. A whole plane is the window of h rows.
+     * @param sum Accumulators of at least w elements
+     * @param out Output array whose elements [outOffset, outOffset + w) receive the row
+     */
+    static void LoGRow(float[] luminance, int rows, int w, int h, int y, double[] sum, int[] out, int outOffset) {
+        LoGSpan(luminance, rows, w, h, y, 0, w - 1, sum, out, outOffset);
+    }
+
+    /**
+     * Convolve pixels [left, right] of row y in the same way as LoGRow.
+     * Only the luminance within 3 pixels of the span is read.
+     */
+    static void LoGSpan(float[] luminance, int rows, int w, int h, int y, int left, int right,
+                        double[] sum, int[] out, int outOffset) {
+        final int kernel_size = LOG_KERNEL_SIZE;
+        Arrays.fill(sum, left, right + 1, 0d);
 
-                newData[y * w + x] = (int) sum;
+        // taps in the order of the kernel loops: i (x offset) outer, j (y offset) inner
+        for (int i = -kernel_size; i <= kernel_size; i++) {
+            // pixels whose tap x + i is within the image
+            int x_from = Math.max(left, -i), x_to = Math.min(right + 1, w - i);
+            for (int j = -kernel_size; j <= kernel_size; j++) {
+                int yy = y + j;
+                if (yy < 0 || yy >= h) {
+                    continue;
+                }
+                double k = LOG_KERNEL[i + kernel_size][j + kernel_size];
+                int offset = (yy % rows) * w + i;
+                for (int x = x_from; x < x_to; x++) {
+                    sum[x] += k * luminance[offset + x];
+                }
             }
         }
 
-        return newData;
+        for (int x = left; x <= right; x++) {
+            out[outOffset + x] = (int) sum[x];
+        }
     }
 
     /**
@@ -96,12 +200,48 @@ public class Filter {
      * (Lab) -> (RGB Grayscale)
      */
     public static int[] edgeEnhanceFilter(int[] data, int[] LoGdata, int w, int h) {
-        int[] newData = new int[w * h];
+        return edgeEnhanceFilter(data, LoGdata, w, h, null);
+    }
 
-        int radius = 3;
-        double g = Math.PI * radius * radius / 2d;
+    /**
+     * Apply edge enhancing filter into a reused array
+     * (Lab) -> (RGB Grayscale)
+     * @param newData Output array of at least w * h elements, or null to allocate a new one
+     */
+    public static int[] edgeEnhanceFilter(int[] data, int[] LoGdata, int w, int h, int[] newData) {
+        return edgeEnhanceFilter(data, LoGdata, w, h, newData, RowBands.SEQUENTIAL);
+    }
 
-        // relative distance list of radius r
+    /**
+     * Apply edge enhancing filter band by band
+     * (Lab) -> (RGB Grayscale)
+     * @param newData Output array of at least w * h elements, or null to allocate a new one
+     * @param bands Bands of rows processed in parallel
+     */
+    public static int[] edgeEnhanceFilter(final int[] data, final int[] LoGdata, final int w, final int h,
+                                          int[] newData, RowBands bands) {
+        final int[] out = output(newData, w, h);
+
+        bands.run(h, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                for (int y = from; y < to; y++) {
+                    edgeEnhanceRow(data, h, w, h, y, LoGdata, y * w, out, y * w);
+                }
+            }
+        });
+
+        return out;
+    }
+
+    // radius of the edge enhancing filter
+    static final int EDGE_RADIUS = 3;
+
+    // relative positions within the circle of the radius
+    private static final int[] EDGE_DX, EDGE_DY;
+
+    static {
+        int radius = EDGE_RADIUS;
         ArrayList<Point> rdists = new ArrayList<Point>();
         for (int rx = -radius; rx <= radius; rx++) {
             for (int ry = -radius; ry <= radius; ry++) {
@@ -111,36 +251,138 @@ public class Filter {
                 }
             }
         }
+        EDGE_DX = new int[rdists.size()];
+        EDGE_DY = new int[rdists.size()];
+        for (int k = 0; k < rdists.size(); k++) {
+            EDGE_DX[k] = rdists.get(k).x;
+            EDGE_DY[k] = rdists.get(k).y;
+        }
+    }
 
-        for (int x = 0; x < w; x++) {
-            for (int y = 0; y < h; y++) {
-                int index = y * w + x;
-
-                // calculate mthres
-                double mthres = 0;
-                for (Point p : rdists) {
-                    int xx = x + p.x, yy = y + p.y;
-                    if (xx >= 0 && xx < w && yy >= 0 && yy < h) {
-                        double sechx = Lab.distance(data[index], data[(y + p.y) * w + (x + p.x)]) / 8d;
-                        mthres += Math.pow(2d / (Math.exp(sechx) + Math.exp(-sechx)), 5d);
-                    }
-                }
+    /**
+     * sech(d / 8)^5 of the Lab distance d indexed by d^2; created on first use
+     */
+    private static class EdgeWeights {
+        static final double[] TABLE = new double[3 * 255 * 255 + 1];
+
+        static {
+            for (int dd = 0; dd < TABLE.length; dd++) {
+                double sechx = Math.sqrt(dd) / 8d;
+                TABLE[dd] = Math.pow(2d / (Math.exp(sechx) + Math.exp(-sechx)), 5d);
+            }
+        }
+    }
+
+    /**
+     * Enhance row y of the edges. The Lab data is read from a window of 'rows' rows,
+     * in which row yy is stored at (yy % rows) * w. A whole plane is the window of h rows.
+     * @param LoGdata LoG values of the row at [LoGoffset, LoGoffset + w)
+     * @param out Output array whose elements [outOffset, outOffset + w) receive the gray scale row
+     */
+    static void edgeEnhanceRow(int[] data, int rows, int w, int h, int y, int[] LoGdata, int LoGoffset,
+                               int[] out, int outOffset) {
+        edgeEnhanceSpan(data, rows, w, h, y, 0, w - 1, LoGdata, LoGoffset, out, outOffset);
+    }
+
+    /**
+     * Enhance pixels [left, right] of row y in the same way as edgeEnhanceRow
+     */
+    static void edgeEnhanceSpan(int[] data, int rows, int w, int h, int y, int left, int right,
+                                int[] LoGdata, int LoGoffset, int[] out, int outOffset) {
+        final double[] weights = EdgeWeights.TABLE;
+        final int n = EDGE_DX.length;
+        final double g = Math.PI * EDGE_RADIUS * EDGE_RADIUS / 2d;
 
-                if (LoGdata[index] >= -3) {
-                    mthres /= rdists.size();
-                    mthres = Math.pow(mthres, 3d);
-                    mthres *= rdists.size();
+        // window offsets of the rows y - EDGE_RADIUS ... y + EDGE_RADIUS
+        int[] rowOffset = new int[2 * EDGE_RADIUS + 1];
+        for (int dy = -EDGE_RADIUS; dy <= EDGE_RADIUS; dy++) {
+            int yy = y + dy;
+            rowOffset[dy + EDGE_RADIUS] = yy >= 0 && yy < h ? (yy % rows) * w : 0;
+        }
+
+        for (int x = left; x <= right; x++) {
+            int center = data[rowOffset[EDGE_RADIUS] + x];
+            int cl = Lab.l(center), ca = Lab.a(center), cb = Lab.b(center);
+
+            // calculate mthres
+            double mthres = 0;
+            for (int k = 0; k < n; k++) {
+                int xx = x + EDGE_DX[k], yy = y + EDGE_DY[k];
+                if (xx >= 0 && xx < w && yy >= 0 && yy < h) {
+                    int c = data[rowOffset[EDGE_DY[k] + EDGE_RADIUS] + xx];
+                    int dl = cl - Lab.l(c), da = ca - Lab.a(c), db = cb - Lab.b(c);
+                    mthres += weights[dl * dl + da * da + db * db];
                 }
+            }
 
-                int val = 0;
-                if (mthres <= g) {
-                    val = (int) ((g - mthres) / g * 255d);
+            if (LoGdata[LoGoffset + x] >= -3) {
+                mthres /= n;
+                mthres = Math.pow(mthres, 3d);
+                mthres *= n;
+            }
+
+            int val = 0;
+            if (mthres <= g) {
+                val = (int) ((g - mthres) / g * 255d);
+            }
+
+            out[outOffset + x] = RGB.rgb(val, val, val);
+        }
+    }
+
+    /**
+     * Enhance pixels [left, right] of row y of a window of Lab planes in the same way as edgeEnhanceSpan.
+     * Each tap of the circle runs over the span once, and every pixel still sums its taps in order.
+     * @param fractional Whether the distances keep their fractions; their weights are interpolated
+     * @param mthres Accumulators of at least w elements
+     */
+    static void edgeEnhanceSpan(LabPlanes.Window window, int w, int h, int y, int left, int right,
+                                boolean fractional, int[] LoGdata, int LoGoffset, double[] mthres,
+                                int[] out, int outOffset) {
+        final double[] weights = EdgeWeights.TABLE;
+        final int n = EDGE_DX.length;
+        final double g = Math.PI * EDGE_RADIUS * EDGE_RADIUS / 2d;
+        int rows = window.rows;
+        float[] L = window.l, A = window.a, B = window.b;
+
+        Arrays.fill(mthres, left, right + 1, 0d);
+        int center = (y % rows) * w;
+        for (int k = 0; k < n; k++) {
+            int yy = y + EDGE_DY[k];
+            if (yy < 0 || yy >= h) {
+                continue;
+            }
+            int dx = EDGE_DX[k], tap = (yy % rows) * w + dx;
+            int x_from = Math.max(left, -dx), x_to = Math.min(right, w - 1 - dx);
+            for (int x = x_from; x <= x_to; x++) {
+                float dl = L[center + x] - L[tap + x], da = A[center + x] - A[tap + x],
+                        db = B[center + x] - B[tap + x];
+                float dd = dl * dl + da * da + db * db;
+                if (fractional) {
+                    int d = Math.min((int) dd, weights.length - 2);
+                    mthres[x] += weights[d] + (weights[d + 1] - weights[d]) * (dd - d);
+                }
+                else {
+                    mthres[x] += weights[(int) dd];
                 }
+            }
+        }
 
-                newData[index] = RGB.rgb(val, val, val);
+        for (int x = left; x <= right; x++) {
+            double m = mthres[x];
+            if (LoGdata[LoGoffset + x] >= -3) {
+                m /= n;
+                m = Math.pow(m, 3d);
+                m *= n;
             }
+
+            int val = 0;
+            if (m <= g) {
+                val = (int) ((g - m) / g * 255d);
+            }
+
+            out[outOffset + x] = RGB.rgb(val, val, val);
         }
-        return newData;
     }
 
 }
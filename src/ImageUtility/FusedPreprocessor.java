@@ -0,0 +1,379 @@
+package ImageUtility;
+
+import static ImageUtility.ColorConverter.*;
+
+/**
+ * Preprocessing from an RGB image to the border mask in two streaming passes.
+ * (RGB) -> (bilateral Lab, border mask)
+ *
+ * The staged pipeline materializes the Lab, bilateral RGB, LoG, edge enhanced
+ * RGB and edge enhanced Lab planes one after another. Here each band of rows
+ * keeps only rolling windows of the rows a kernel needs:
+ *  1. RGB rows are converted into a window of 2r+1 Lab rows, which the
+ *     bilateral filter reads to write the bilateral Lab plane.
+ *  2. The bilateral Lab plane is converted into a window of 7 luminance rows,
+ *     each LoG row is followed by its edge enhanced row, and the row is
+ *     thresholded into the mask.
+ * The bilateral Lab plane is still written since the region growing reads it.
+ * The mask is identical to thresholding the output of the staged filters.
+ * The work can be restricted to a set of active pixels, whose mask is then
+ * the same as that of the whole image; the luminance is converted and the
+ * LoG computed only around and on the spans of the active pixels. Lab planes go through the same two
+ * passes with the planar kernels.
+ */
+public class FusedPreprocessor {
+
+    // squared distance from an active pixel within which the bilateral values are read:
+    // the 7x7 LoG kernel reaches (3, 3), the edge enhancing circle less
+    private static final int CONTEXT_DISTANCE = 3 * 3 + 3 * 3;
+
+    private final BilateralFilter bilateralFilter;
+
+    // pixels whose edge enhanced value is greater than this are borders
+    private final int threshold;
+
+    public FusedPreprocessor(BilateralFilter bilateralFilter, int threshold) {
+        this.bilateralFilter = bilateralFilter;
+        this.threshold = threshold;
+    }
+
+    public BilateralFilter getBilateralFilter() {
+        return bilateralFilter;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Preprocess an image
+     * @param rgb RGB data
+     * @param lab Lab data of the same image, or null to convert the rows on the fly.
+     *            The GRID mode filters the whole plane, so it is converted if null.
+     * @param bilateralLab Output array of at least w * h elements, or null to allocate a new one
+     * @param mask Output array of at least w * h elements which receives 1 on borders and 0 elsewhere,
+     *             or null to allocate a new one
+     * @param bands Bands of rows processed in parallel
+     * @return The bilateral Lab data; the mask is written into 'mask' if given
+     */
+    public int[] apply(int[] rgb, int[] lab, int w, int h, int[] bilateralLab, byte[] mask, RowBands bands) {
+        return apply(rgb, lab, w, h, bilateralLab, mask, null, bands);
+    }
+
+    /**
+     * Preprocess the active pixels of an image.
+     * The bilateral Lab data is filtered only around the active pixels and holds the original Lab
+     * data elsewhere, and the mask is 0 outside of the active pixels.
+     * @param active Pixels whose mask is needed, or null for all pixels
+     */
+    public int[] apply(int[] rgb, int[] lab, int w, int h, int[] bilateralLab, byte[] mask, PixelSet active,
+                       RowBands bands) {
+        int[] filtered = Filter.output(bilateralLab, w, h);
+        if (mask == null || mask.length < w * h) {
+            throw new IllegalArgumentException("The mask must hold " + w + " x " + h + " pixels");
+        }
+
+        // squared distances to the active pixels
+        int[] distance = active == null ? null : DistanceTransform.apply(active, null, bands);
+
+        if (bilateralFilter.getMode() == BilateralFilter.Mode.GRID) {
+            if (lab == null) {
+                lab = new int[w * h];
+                ColorTable.rgb_to_lab(rgb, lab, 0, w * h);
+            }
+            bilateralFilter.apply(lab, w, h, filtered, bands);
+        }
+        else {
+            filterBilateral(rgb, lab, w, h, filtered, distance, bands);
+        }
+
+        enhanceEdges(filtered, w, h, mask, distance, bands);
+        return filtered;
+    }
+
+    /**
+     * Preprocess an image held in off-heap planes. The rows of the planes are streamed
+     * through the same rolling windows, and only the rows in the windows are on the heap.
+     * @param rgb RGB plane
+     * @param bilateralLab Output plane of the bilateral Lab data
+     * @param edges Output plane of the edge enhanced gray scale; red values greater than
+     *              the threshold are borders
+     * @param bands Bands of rows processed in parallel
+     */
+    public void apply(final IntPlane rgb, final IntPlane bilateralLab, final IntPlane edges, RowBands bands) {
+        if (bilateralFilter.getMode() == BilateralFilter.Mode.GRID) {
+            throw new IllegalStateException("The GRID mode filters whole planes on the heap");
+        }
+        final int w = rgb.getWidth(), h = rgb.getHeight();
+        final int radius = bilateralFilter.getRadius();
+
+        bands.run(h, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                int rows = 2 * radius + 1;
+                int[] window = new int[rows * w], row = new int[w];
+
+                int next = Math.max(0, from - radius);
+                for (int y = from; y < to; y++) {
+                    for (int last = Math.min(h - 1, y + radius); next <= last; next++) {
+                        int offset = (next % rows) * w;
+                        rgb.getRow(next, 0, w, window, offset);
+                        for (int x = 0; x < w; x++) {
+                            window[offset + x] = ColorTable.rgb_to_lab(window[offset + x]);
+                        }
+                    }
+                    bilateralFilter.filterRow(window, rows, w, h, y, row, 0);
+                    bilateralLab.setRow(y, 0, w, row, 0);
+                }
+            }
+        });
+
+        final int kernel = Math.max(Filter.LOG_KERNEL_SIZE, Filter.EDGE_RADIUS);
+        bands.run(h, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                int rows = 2 * kernel + 1;
+                int[] window = new int[rows * w];
+                float[] luminance = new float[rows * w];
+                double[] sum = new double[w];
+                int[] LoGrow = new int[w], edgeRow = new int[w];
+
+                int next = Math.max(0, from - kernel);
+                for (int y = from; y < to; y++) {
+                    for (int last = Math.min(h - 1, y + kernel); next <= last; next++) {
+                        int offset = (next % rows) * w;
+                        bilateralLab.getRow(next, 0, w, window, offset);
+                        for (int x = 0; x < w; x++) {
+                            luminance[offset + x] = RGB.luminance(ColorTable.lab_to_rgb(window[offset + x]));
+                        }
+                    }
+                    Filter.LoGRow(luminance, rows, w, h, y, sum, LoGrow, 0);
+                    Filter.edgeEnhanceRow(window, rows, w, h, y, LoGrow, 0, edgeRow, 0);
+                    edges.setRow(y, 0, w, edgeRow, 0);
+                }
+            }
+        });
+    }
+
+    /**
+     * Preprocess the active pixels of an image held in Lab planes.
+     * The bilateral planes are filtered only around the active pixels and hold the original colors
+     * elsewhere, and the mask is 0 outside of the active pixels.
+     * @param lab Lab planes of the image
+     * @param bilateralLab Planes of the same size and precision which receive the bilateral colors
+     * @param mask Output array of at least w * h elements which receives 1 on borders and 0 elsewhere
+     * @param active Pixels whose mask is needed, or null for all pixels
+     * @param bands Bands of rows processed in parallel
+     */
+    public void apply(final LabPlanes lab, final LabPlanes bilateralLab, final byte[] mask, PixelSet active,
+                      RowBands bands) {
+        if (bilateralFilter.getMode() == BilateralFilter.Mode.GRID) {
+            throw new IllegalStateException("The GRID mode filters packed Lab data");
+        }
+        final int w = lab.getWidth(), h = lab.getHeight();
+        if (mask.length < w * h) {
+            throw new IllegalArgumentException("The mask must hold " + w + " x " + h + " pixels");
+        }
+        final int[] distance = active == null ? null : DistanceTransform.apply(active, null, bands);
+        final boolean fractional = lab.getPrecision() == LabPlanes.Precision.FLOAT;
+        final int radius = bilateralFilter.getRadius();
+
+        bands.run(h, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                LabPlanes.Window window = lab.window(2 * radius + 1);
+                BilateralFilter.Row row = new BilateralFilter.Row(w);
+
+                int next = Math.max(0, from - radius);
+                for (int y = from; y < to; y++) {
+                    for (int last = Math.min(h - 1, y + radius); next <= last; next++) {
+                        window.load(next);
+                    }
+                    for (int x = 0; x < w; x++) {
+                        // the span filtered, or copied outside of the context of the active pixels
+                        boolean filtered = inContext(distance, y * w + x);
+                        int left = x;
+                        while (x + 1 < w && inContext(distance, y * w + x + 1) == filtered) {
+                            x++;
+                        }
+                        if (filtered) {
+                            bilateralFilter.filterSpan(window, w, h, y, left, x, fractional, row);
+                            bilateralLab.setRow(y, left, x, row.outL, row.outA, row.outB);
+                        }
+                        else {
+                            bilateralLab.copyRow(lab, y, left, x);
+                        }
+                    }
+                }
+            }
+        });
+
+        final int kernel = Math.max(Filter.LOG_KERNEL_SIZE, Filter.EDGE_RADIUS);
+        bands.run(h, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                int rows = 2 * kernel + 1;
+                LabPlanes.Window window = bilateralLab.window(rows);
+                float[] luminance = new float[rows * w];
+                double[] sum = new double[w];
+                int[] LoGrow = new int[w], edgeRow = new int[w];
+
+                int next = Math.max(0, from - kernel);
+                for (int y = from; y < to; y++) {
+                    for (int last = Math.min(h - 1, y + kernel); next <= last; next++) {
+                        window.load(next);
+                        int offset = (next % rows) * w;
+                        for (int x = 0; x < w; x++) {
+                            if (inContext(distance, next * w + x)) {
+                                luminance[offset + x] = RGB.luminance(ColorTable.lab_to_rgb(bilateralLab.packed(next * w + x)));
+                            }
+                        }
+                    }
+
+                    int row = y * w;
+                    for (int x = 0; x < w; x++) {
+                        if (distance != null && distance[row + x] != 0) {
+                            mask[row + x] = 0;
+                            continue;
+                        }
+                        int left = x;
+                        while (x + 1 < w && (distance == null || distance[row + x + 1] == 0)) {
+                            x++;
+                        }
+                        Filter.LoGSpan(luminance, rows, w, h, y, left, x, sum, LoGrow, 0);
+                        Filter.edgeEnhanceSpan(window, w, h, y, left, x, fractional, LoGrow, 0, sum, edgeRow, 0);
+                        for (int xx = left; xx <= x; xx++) {
+                            mask[row + xx] = (byte) (RGB.r(edgeRow[xx]) > threshold ? 1 : 0);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return Whether a pixel is within the context of the active pixels
+     */
+    private static boolean inContext(int[] distance, int index) {
+        return distance == null || distance[index] <= CONTEXT_DISTANCE;
+    }
+
+    /**
+     * Bilateral filter reading a rolling window of Lab rows
+     * @param distance Squared distances to the active pixels, or null if all pixels are active
+     */
+    private void filterBilateral(final int[] rgb, final int[] lab, final int w, final int h,
+                                 final int[] out, final int[] distance, RowBands bands) {
+        final int radius = bilateralFilter.getRadius();
+
+        bands.run(h, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                if (lab != null) {
+                    for (int y = from; y < to; y++) {
+                        filterRow(lab, h, w, h, y, out, distance);
+                    }
+                    return;
+                }
+
+                int rows = 2 * radius + 1;
+                int[] window = new int[rows * w];
+
+                // the next row to be converted
+                int next = Math.max(0, from - radius);
+                for (int y = from; y < to; y++) {
+                    for (int last = Math.min(h - 1, y + radius); next <= last; next++) {
+                        int offset = (next % rows) * w;
+                        for (int x = 0; x < w; x++) {
+                            window[offset + x] = ColorTable.rgb_to_lab(rgb[next * w + x]);
+                        }
+                    }
+                    filterRow(window, rows, w, h, y, out, distance);
+                }
+            }
+        });
+    }
+
+    /**
+     * Filter the pixels of row y within the context of the active pixels, and copy the others
+     */
+    private void filterRow(int[] window, int rows, int w, int h, int y, int[] out, int[] distance) {
+        if (distance == null) {
+            bilateralFilter.filterRow(window, rows, w, h, y, out, y * w);
+            return;
+        }
+
+        int row = y * w, windowRow = (y % rows) * w;
+        for (int x = 0; x < w; x++) {
+            if (distance[row + x] > CONTEXT_DISTANCE) {
+                out[row + x] = window[windowRow + x];
+                continue;
+            }
+            int left = x;
+            while (x + 1 < w && distance[row + x + 1] <= CONTEXT_DISTANCE) {
+                x++;
+            }
+            bilateralFilter.filterSpan(window, rows, w, h, y, left, x, out, row);
+        }
+    }
+
+    /**
+     * LoG and edge enhancement reading a rolling window of luminance rows, thresholded into the mask
+     * @param distance Squared distances to the active pixels, or null if all pixels are active
+     */
+    private void enhanceEdges(final int[] data, final int w, final int h, final byte[] mask, final int[] distance,
+                              RowBands bands) {
+        final int radius = Filter.LOG_KERNEL_SIZE;
+
+        bands.run(h, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                int rows = 2 * radius + 1;
+                float[] window = new float[rows * w];
+                double[] sum = new double[w];
+                int[] LoGrow = new int[w], edgeRow = new int[w];
+
+                // the next row to be converted
+                int next = Math.max(0, from - radius);
+                for (int y = from; y < to; y++) {
+                    for (int last = Math.min(h - 1, y + radius); next <= last; next++) {
+                        // the LoG of the active pixels reads the luminance within their context
+                        int offset = (next % rows) * w, row = next * w;
+                        for (int x = 0; x < w; x++) {
+                            if (inContext(distance, row + x)) {
+                                window[offset + x] = RGB.luminance(ColorTable.lab_to_rgb(data[row + x]));
+                            }
+                        }
+                    }
+
+                    if (distance == null) {
+                        Filter.LoGRow(window, rows, w, h, y, sum, LoGrow, 0);
+                        Filter.edgeEnhanceRow(data, h, w, h, y, LoGrow, 0, edgeRow, 0);
+                        for (int x = 0; x < w; x++) {
+                            mask[y * w + x] = (byte) (RGB.r(edgeRow[x]) > threshold ? 1 : 0);
+                        }
+                        continue;
+                    }
+
+                    // only the active pixels
+                    int row = y * w;
+                    for (int x = 0; x < w; x++) {
+                        if (distance[row + x] != 0) {
+                            mask[row + x] = 0;
+                            continue;
+                        }
+                        int left = x;
+                        while (x + 1 < w && distance[row + x + 1] == 0) {
+                            x++;
+                        }
+                        Filter.LoGSpan(window, rows, w, h, y, left, x, sum, LoGrow, 0);
+                        Filter.edgeEnhanceSpan(data, h, w, h, y, left, x, LoGrow, 0, edgeRow, 0);
+                        for (int xx = left; xx <= x; xx++) {
+                            mask[row + xx] = (byte) (RGB.r(edgeRow[xx]) > threshold ? 1 : 0);
+                        }
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,193 @@
+package ImageUtility;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Row-major plane of int pixels outside of the Java heap.
+ *
+ * A buffer holds at most 2^31 bytes, so the plane is split into chunks of
+ * whole rows, each a direct or a memory-mapped buffer, and a plane may hold
+ * more than 2^31 pixels. Rows are read and written in bulk or through views
+ * of the chunks, so kernels streaming rows never copy the whole plane.
+ * The memory of a plane belongs to an Arena, and the plane cannot be used
+ * after the arena is closed; direct memory is returned once the buffers
+ * are collected, and mapped files are unmapped the same way.
+ * Pixels are stored in ORDER in both kinds of chunks, so a mapped file
+ * has the same layout on every platform.
+ */
+public class IntPlane {
+
+    // the largest chunk in bytes; a row longer than this is a chunk of its own
+    private static final long MAX_CHUNK = 1L << 30;
+
+    // the widest plane, whose rows fit in a buffer of at most Integer.MAX_VALUE bytes
+    public static final int MAX_WIDTH = Integer.MAX_VALUE / 4;
+
+    // byte order of the pixels in direct and mapped chunks
+    public static final ByteOrder ORDER = ByteOrder.BIG_ENDIAN;
+
+    private final int width, height, rowsPerChunk;
+    private final ArrayList<IntBuffer> chunks = new ArrayList<IntBuffer>();
+    private final ArrayList<MappedByteBuffer> mapped = new ArrayList<MappedByteBuffer>();
+    private volatile boolean closed = false;
+
+    /**
+     * Owner of the memory of the planes allocated from it.
+     * Closing the arena closes its planes, whose rows can no longer be accessed;
+     * mapped planes are written back to their files.
+     */
+    public static class Arena implements Closeable {
+
+        private final ArrayList<IntPlane> planes = new ArrayList<IntPlane>();
+        private final ArrayList<RandomAccessFile> files = new ArrayList<RandomAccessFile>();
+        private boolean closed = false;
+
+        /**
+         * Allocate a plane in direct buffers
+         */
+        public synchronized IntPlane allocate(int width, int height) {
+            checkOpen();
+            IntPlane plane = new IntPlane(width, height);
+            for (int y = 0; y < height; y += plane.rowsPerChunk) {
+                int rows = Math.min(plane.rowsPerChunk, height - y);
+                plane.chunks.add(ByteBuffer.allocateDirect((int) plane.chunkBytes(rows)).order(ORDER).asIntBuffer());
+            }
+            planes.add(plane);
+            return plane;
+        }
+
+        /**
+         * Map a plane onto a file, which is created or extended to 4 * width * height bytes.
+         * The pixels of an existing file are kept, so a plane can be reopened.
+         * @throws IOException if the file cannot be mapped
+         */
+        public synchronized IntPlane map(File file, int width, int height) throws IOException {
+            checkOpen();
+            IntPlane plane = new IntPlane(width, height);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            files.add(raf);
+            raf.setLength(Math.max(raf.length(), 4L * width * height));
+            FileChannel channel = raf.getChannel();
+            for (int y = 0; y < height; y += plane.rowsPerChunk) {
+                int rows = Math.min(plane.rowsPerChunk, height - y);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 4L * width * y, plane.chunkBytes(rows));
+                plane.mapped.add(buffer);
+                plane.chunks.add(buffer.order(ORDER).asIntBuffer());
+            }
+            planes.add(plane);
+            return plane;
+        }
+
+        private void checkOpen() {
+            if (closed) {
+                throw new IllegalStateException("The arena is closed");
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (IntPlane plane : planes) {
+                plane.close();
+            }
+            planes.clear();
+            for (RandomAccessFile file : files) {
+                file.close();
+            }
+            files.clear();
+        }
+    }
+
+    private IntPlane(int width, int height) {
+        if (width < 1 || height < 1 || width > MAX_WIDTH) {
+            throw new IllegalArgumentException("Invalid plane size: " + width + " x " + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.rowsPerChunk = (int) Math.max(1, Math.min(height, MAX_CHUNK / (4L * width)));
+    }
+
+    /**
+     * @return The size in bytes of a chunk of 'rows' rows, which is at most Integer.MAX_VALUE
+     */
+    private long chunkBytes(int rows) {
+        return 4L * width * rows;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return The number of pixels, which may exceed Integer.MAX_VALUE
+     */
+    public long size() {
+        return (long) width * height;
+    }
+
+    /**
+     * A view of the pixels [x, x + length) of row y, sharing the memory of the plane.
+     * Views are not thread safe, so each thread should create its own.
+     */
+    public IntBuffer row(int y, int x, int length) {
+        if (closed) {
+            throw new IllegalStateException("The plane is closed");
+        }
+        if (y < 0 || y >= height || x < 0 || length < 0 || x + length > width) {
+            throw new IndexOutOfBoundsException("Row " + y + " [" + x + ", " + (x + length) + ")");
+        }
+        IntBuffer view = chunks.get(y / rowsPerChunk).duplicate();
+        int position = (y % rowsPerChunk) * width + x;
+        view.limit(position + length).position(position);
+        return view;
+    }
+
+    /**
+     * Copy pixels [x, x + length) of row y into dst[offset, offset + length)
+     */
+    public void getRow(int y, int x, int length, int[] dst, int offset) {
+        row(y, x, length).get(dst, offset, length);
+    }
+
+    /**
+     * Copy src[offset, offset + length) into pixels [x, x + length) of row y
+     */
+    public void setRow(int y, int x, int length, int[] src, int offset) {
+        row(y, x, length).put(src, offset, length);
+    }
+
+    /**
+     * Write the pixels of a mapped plane back to its file
+     */
+    public void force() {
+        for (MappedByteBuffer buffer : mapped) {
+            buffer.force();
+        }
+    }
+
+    private void close() {
+        if (closed) {
+            return;
+        }
+        force();
+        closed = true;
+        chunks.clear();
+        mapped.clear();
+    }
+}
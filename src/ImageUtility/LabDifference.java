@@ -0,0 +1,80 @@
+package ImageUtility;
+
+import java.util.Locale;
+
+import static ImageUtility.ColorConverter.*;
+
+/**
+ * Per channel difference of Lab images, accumulated over any number of images.
+ * Used to report how far an approximate stage is from the exact one.
+ */
+public class LabDifference {
+
+    private static final String[] CHANNELS = {"L", "a", "b"};
+
+    private long pixels = 0, changed = 0;
+    private long[] sumAbs = new long[3];
+    private int[] max = new int[3];
+
+    /**
+     * Accumulate the difference of two images
+     * @param expected Lab data of the reference
+     * @param actual Lab data to be compared
+     * @param n The number of pixels
+     */
+    public synchronized void add(int[] expected, int[] actual, int n) {
+        for (int i = 0; i < n; i++) {
+            int e = expected[i], a = actual[i];
+            if (e == a) {
+                continue;
+            }
+            changed++;
+            accumulate(0, Math.abs(Lab.l(e) - Lab.l(a)));
+            accumulate(1, Math.abs(Lab.a(e) - Lab.a(a)));
+            accumulate(2, Math.abs(Lab.b(e) - Lab.b(a)));
+        }
+        pixels += n;
+    }
+
+    private void accumulate(int ch, int d) {
+        sumAbs[ch] += d;
+        if (d > max[ch]) max[ch] = d;
+    }
+
+    public synchronized void add(LabDifference other) {
+        pixels += other.pixels;
+        changed += other.changed;
+        for (int ch = 0; ch < 3; ch++) {
+            sumAbs[ch] += other.sumAbs[ch];
+            max[ch] = Math.max(max[ch], other.max[ch]);
+        }
+    }
+
+    /**
+     * @param ch 0: L, 1: a, 2: b
+     */
+    public synchronized double getMeanError(int ch) {
+        return pixels == 0 ? 0 : sumAbs[ch] / (double) pixels;
+    }
+
+    public synchronized int getMaxError(int ch) {
+        return max[ch];
+    }
+
+    /**
+     * @return The ratio of pixels which differ in any channel
+     */
+    public synchronized double getChangedRatio() {
+        return pixels == 0 ? 0 : changed / (double) pixels;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int ch = 0; ch < 3; ch++) {
+            sb.append(String.format(Locale.ENGLISH, "%s mean %.3f max %d, ", CHANNELS[ch], getMeanError(ch), max[ch]));
+        }
+        sb.append(String.format(Locale.ENGLISH, "%.2f%% pixels differ", getChangedRatio() * 100));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,244 @@
+package ImageUtility;
+
+import static ImageUtility.ColorConverter.*;
+
+/**
+ * Lab image stored as three separate planes of L, a + 128 and b + 128.
+ *
+ * The packed form keeps a whole pixel in one int, so every kernel unpacks
+ * the channels with shifts. Here each channel is a contiguous array, and
+ * the kernels run one loop per channel over a row, which the JIT can
+ * vectorize. BYTE planes hold the same 8 bit values as the packed form,
+ * and the kernels give the same results on them. FLOAT planes hold the
+ * unrounded channels, and the kernels keep their fractions, so nothing is
+ * lost between the stages.
+ */
+public class LabPlanes {
+
+    public static enum Precision {
+        // 8 bits per channel, the values of the packed form
+        BYTE,
+        // 32 bit floats without rounding
+        FLOAT,
+    }
+
+    private final int width, height;
+    private final Precision precision;
+    private final byte[] lByte, aByte, bByte;
+    private final float[] lFloat, aFloat, bFloat;
+
+    public LabPlanes(int width, int height, Precision precision) {
+        this.width = width;
+        this.height = height;
+        this.precision = precision;
+        int size = width * height;
+        if (precision == Precision.BYTE) {
+            lByte = new byte[size];
+            aByte = new byte[size];
+            bByte = new byte[size];
+            lFloat = aFloat = bFloat = null;
+        }
+        else {
+            lFloat = new float[size];
+            aFloat = new float[size];
+            bFloat = new float[size];
+            lByte = aByte = bByte = null;
+        }
+    }
+
+    /**
+     * Convert RGB data into planes. FLOAT planes are converted without rounding.
+     * @param bands Bands of rows converted in parallel
+     */
+    public static LabPlanes fromRGB(final int[] rgb, final int width, int height, Precision precision,
+                                    RowBands bands) {
+        final LabPlanes planes = new LabPlanes(width, height, precision);
+        bands.run(height, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                float[] lab = new float[3];
+                for (int i = from * width; i < to * width; i++) {
+                    if (planes.precision == Precision.BYTE) {
+                        planes.set(i, ColorTable.rgb_to_lab(rgb[i]));
+                    }
+                    else {
+                        ColorTable.rgb_to_lab(rgb[i], lab, 0);
+                        planes.lFloat[i] = lab[0];
+                        planes.aFloat[i] = lab[1];
+                        planes.bFloat[i] = lab[2];
+                    }
+                }
+            }
+        });
+        return planes;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    public float l(int index) {
+        return lByte != null ? lByte[index] & 0xff : lFloat[index];
+    }
+
+    public float a(int index) {
+        return aByte != null ? aByte[index] & 0xff : aFloat[index];
+    }
+
+    public float b(int index) {
+        return bByte != null ? bByte[index] & 0xff : bFloat[index];
+    }
+
+    /**
+     * @return The packed Lab color of a pixel; FLOAT channels are rounded
+     */
+    public int packed(int index) {
+        if (lByte != null) {
+            return Lab.lab(lByte[index] & 0xff, aByte[index] & 0xff, bByte[index] & 0xff);
+        }
+        return Lab.lab(round(lFloat[index]), round(aFloat[index]), round(bFloat[index]));
+    }
+
+    private static int round(float value) {
+        return Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    /**
+     * Set a pixel to a packed Lab color
+     */
+    public void set(int index, int lab) {
+        if (lByte != null) {
+            lByte[index] = (byte) Lab.l(lab);
+            aByte[index] = (byte) Lab.a(lab);
+            bByte[index] = (byte) Lab.b(lab);
+        }
+        else {
+            lFloat[index] = Lab.l(lab);
+            aFloat[index] = Lab.a(lab);
+            bFloat[index] = Lab.b(lab);
+        }
+    }
+
+    /**
+     * Squared distance of a pixel from a packed Lab color
+     */
+    public float distanceSquared(int index, int lab) {
+        float dl = l(index) - Lab.l(lab), da = a(index) - Lab.a(lab), db = b(index) - Lab.b(lab);
+        return dl * dl + da * da + db * db;
+    }
+
+    /**
+     * Pack the planes into Lab data
+     * @param out Output array of at least width * height elements, or null to allocate a new one
+     * @param bands Bands of rows packed in parallel
+     */
+    public int[] toPacked(int[] out, RowBands bands) {
+        final int[] packed = Filter.output(out, width, height);
+        bands.run(height, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from * width; i < to * width; i++) {
+                    packed[i] = packed(i);
+                }
+            }
+        });
+        return packed;
+    }
+
+    /**
+     * Store the channels [left, right] of row y, given at the same columns of the row arrays.
+     * BYTE planes keep the integer parts.
+     */
+    void setRow(int y, int left, int right, float[] l, float[] a, float[] b) {
+        int row = y * width;
+        if (lByte != null) {
+            for (int x = left; x <= right; x++) {
+                lByte[row + x] = (byte) (int) l[x];
+            }
+            for (int x = left; x <= right; x++) {
+                aByte[row + x] = (byte) (int) a[x];
+            }
+            for (int x = left; x <= right; x++) {
+                bByte[row + x] = (byte) (int) b[x];
+            }
+        }
+        else {
+            System.arraycopy(l, left, lFloat, row + left, right - left + 1);
+            System.arraycopy(a, left, aFloat, row + left, right - left + 1);
+            System.arraycopy(b, left, bFloat, row + left, right - left + 1);
+        }
+    }
+
+    /**
+     * Copy the pixels [left, right] of row y from planes of the same size and precision
+     */
+    void copyRow(LabPlanes from, int y, int left, int right) {
+        int offset = y * width + left, length = right - left + 1;
+        if (lByte != null) {
+            System.arraycopy(from.lByte, offset, lByte, offset, length);
+            System.arraycopy(from.aByte, offset, aByte, offset, length);
+            System.arraycopy(from.bByte, offset, bByte, offset, length);
+        }
+        else {
+            System.arraycopy(from.lFloat, offset, lFloat, offset, length);
+            System.arraycopy(from.aFloat, offset, aFloat, offset, length);
+            System.arraycopy(from.bFloat, offset, bFloat, offset, length);
+        }
+    }
+
+    /**
+     * Float channels of the rows a kernel reads, in which row yy is stored at (yy % rows) * w.
+     * FLOAT planes are read in place as the window of all rows, and the rows of BYTE planes
+     * are widened into a rolling window as they are loaded.
+     */
+    Window window(int rows) {
+        return new Window(rows);
+    }
+
+    class Window {
+        final int rows;
+        final float[] l, a, b;
+
+        private Window(int rows) {
+            if (lFloat != null) {
+                this.rows = height;
+                this.l = lFloat;
+                this.a = aFloat;
+                this.b = bFloat;
+            }
+            else {
+                this.rows = rows;
+                this.l = new float[rows * width];
+                this.a = new float[rows * width];
+                this.b = new float[rows * width];
+            }
+        }
+
+        /**
+         * Make row y available in the window
+         */
+        void load(int y) {
+            if (lByte == null) {
+                return;
+            }
+            int from = y * width, to = (y % rows) * width;
+            for (int x = 0; x < width; x++) {
+                l[to + x] = lByte[from + x] & 0xff;
+            }
+            for (int x = 0; x < width; x++) {
+                a[to + x] = aByte[from + x] & 0xff;
+            }
+            for (int x = 0; x < width; x++) {
+                b[to + x] = bByte[from + x] & 0xff;
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package ImageUtility;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Difference of label maps, accumulated over any number of images.
+ * Used to report how far an approximate segmentation is from the exact one.
+ *
+ * The labels themselves are arbitrary, so each actual region is matched to
+ * the expected region it overlaps most, and the pixels outside of that
+ * overlap differ. The same is done the other way round, so both merged and
+ * split regions count, and the larger difference is taken. Pixels without
+ * a label (less than 0) are compared as one more region.
+ */
+public class LabelDifference {
+
+    private long pixels = 0, changed = 0;
+    private long expectedRegions = 0, actualRegions = 0;
+
+    /**
+     * Accumulate the difference of two label maps
+     * @param expected Labels of the reference, less than expectedCount
+     * @param actual Labels to be compared, less than actualCount
+     * @param n The number of pixels
+     */
+    public synchronized void add(int[] expected, int expectedCount, int[] actual, int actualCount, int n) {
+        long matched = Math.min(matched(actual, expected, expectedCount, n), matched(expected, actual, actualCount, n));
+
+        pixels += n;
+        changed += n - matched;
+        expectedRegions += expectedCount;
+        actualRegions += actualCount;
+    }
+
+    /**
+     * @return The number of pixels in the best matching 'to' region of each 'from' region
+     */
+    private static long matched(int[] from, int[] to, int toCount, int n) {
+        // pairs of (from, to) labels, sorted to count the overlaps
+        long[] pairs = new long[n];
+        for (int i = 0; i < n; i++) {
+            long f = Math.max(from[i], -1) + 1, t = Math.max(to[i], -1) + 1;
+            pairs[i] = f * (toCount + 1) + t;
+        }
+        Arrays.sort(pairs);
+
+        long matched = 0;
+        for (int i = 0; i < n; ) {
+            long f = pairs[i] / (toCount + 1);
+            int best = 0;
+            while (i < n && pairs[i] / (toCount + 1) == f) {
+                int j = i;
+                while (j < n && pairs[j] == pairs[i]) {
+                    j++;
+                }
+                best = Math.max(best, j - i);
+                i = j;
+            }
+            matched += best;
+        }
+        return matched;
+    }
+
+    public synchronized void add(LabelDifference other) {
+        pixels += other.pixels;
+        changed += other.changed;
+        expectedRegions += other.expectedRegions;
+        actualRegions += other.actualRegions;
+    }
+
+    /**
+     * @return The ratio of pixels outside of the best matching regions
+     */
+    public synchronized double getChangedRatio() {
+        return pixels == 0 ? 0 : changed / (double) pixels;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ENGLISH, "%.2f%% pixels differ, %d regions instead of %d",
+                getChangedRatio() * 100, actualRegions, expectedRegions);
+    }
+}
@@ -0,0 +1,107 @@
+package ImageUtility;
+
+import java.awt.*;
+import java.awt.image.*;
+
+/**
+ * Palette indexed image of a label map.
+ *
+ * The pixels hold palette indices in a byte or short raster, built once,
+ * and an image for a palette is the raster with an IndexColorModel, so
+ * recoloring only swaps the color model and never touches the pixels.
+ * Maps of more than 65536 colors fall back to an ARGB image per palette.
+ */
+public class LabelImage {
+
+    private final int width, height, colors;
+
+    // palette indices, or null for the fallback
+    private final WritableRaster raster;
+
+    // palette indices of the fallback
+    private final int[] indices;
+
+    /**
+     * Index the pixels of a label map by label + 1; labels less than 0 get index 0
+     * @param labels Row-major labels
+     * @param labelCount The number of labels, which are less than this
+     */
+    public LabelImage(int[] labels, int w, int h, int labelCount) {
+        this.width = w;
+        this.height = h;
+        this.colors = labelCount + 1;
+
+        if (colors <= 1 << 16) {
+            if (colors <= 1 << 8) {
+                byte[] data = new byte[w * h];
+                for (int i = 0; i < w * h; i++) {
+                    data[i] = (byte) (labels[i] < 0 ? 0 : labels[i] + 1);
+                }
+                this.raster = createRaster(new DataBufferByte(data, w * h), w, h);
+            }
+            else {
+                short[] data = new short[w * h];
+                for (int i = 0; i < w * h; i++) {
+                    data[i] = (short) (labels[i] < 0 ? 0 : labels[i] + 1);
+                }
+                this.raster = createRaster(new DataBufferUShort(data, w * h), w, h);
+            }
+            this.indices = null;
+        }
+        else {
+            this.raster = null;
+            this.indices = new int[w * h];
+            for (int i = 0; i < w * h; i++) {
+                indices[i] = labels[i] < 0 ? 0 : labels[i] + 1;
+            }
+        }
+    }
+
+    /**
+     * Wrap a mask of 0 and 1 without copying it
+     * @param mask Row-major mask, which must not be changed while the images are in use
+     */
+    public LabelImage(byte[] mask, int w, int h) {
+        this.width = w;
+        this.height = h;
+        this.colors = 2;
+        this.raster = createRaster(new DataBufferByte(mask, w * h), w, h);
+        this.indices = null;
+    }
+
+    private static WritableRaster createRaster(DataBuffer buffer, int w, int h) {
+        SampleModel sm = new PixelInterleavedSampleModel(buffer.getDataType(), w, h, 1, w, new int[]{0});
+        return Raster.createWritableRaster(sm, buffer, new Point());
+    }
+
+    /**
+     * @return The number of palette indices; index 0 is for the pixels without a label
+     */
+    public int getColorCount() {
+        return colors;
+    }
+
+    /**
+     * Create an image colored by a palette. Images of the same LabelImage share their pixels.
+     * @param palette ARGB colors of at least getColorCount() elements indexed by the palette index
+     */
+    public BufferedImage getImage(int[] palette) {
+        if (palette.length < colors) {
+            throw new IllegalArgumentException("The palette must have " + colors + " colors");
+        }
+
+        if (raster == null) {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            for (int i = 0; i < width * height; i++) {
+                data[i] = palette[indices[i]];
+            }
+            return image;
+        }
+
+        int bits = raster.getDataBuffer().getDataType() == DataBuffer.TYPE_BYTE ? 8 : 16;
+        IndexColorModel cm = new IndexColorModel(bits, colors, palette, 0, true, -1,
+                raster.getDataBuffer().getDataType());
+        return new BufferedImage(cm, raster, false, null);
+    }
+}
@@ -0,0 +1,360 @@
+package ImageUtility;
+
+import java.util.Arrays;
+
+/**
+ * Set of canvas pixels stored as a packed bitmap.
+ *
+ * The bitmap only covers a bounding box of the pixels, which grows
+ * when a pixel outside of it is added. Each row of the box is a run of
+ * 64 bit words aligned to the canvas, so union and difference work on
+ * whole words. Pixels are iterated by their row-major canvas index
+ * (y * canvas_width + x):
+ * <pre>
+ *     for (int i = set.nextPixel(0); i >= 0; i = set.nextPixel(i + 1)) { ... }
+ * </pre>
+ */
+public class PixelSet {
+
+    private final int canvas_width, canvas_height;
+
+    // allocated box: words [wx0, wx0 + stride) of rows [y0, y0 + rows)
+    private int wx0, y0, stride, rows;
+    private long[] bits;
+
+    // number of pixels in the set
+    private int count;
+
+    public PixelSet(int canvas_width, int canvas_height) {
+        this.canvas_width = canvas_width;
+        this.canvas_height = canvas_height;
+    }
+
+    public int getCanvasWidth() {
+        return canvas_width;
+    }
+
+    public int getCanvasHeight() {
+        return canvas_height;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Remove all pixels. The allocated bitmap is kept for reuse.
+     */
+    public void clear() {
+        if (bits != null) {
+            Arrays.fill(bits, 0L);
+        }
+        count = 0;
+    }
+
+    /**
+     * Add every pixel of the canvas
+     */
+    public void fill() {
+        int words = (canvas_width + 63) >> 6;
+        ensureBox(0, words, 0, canvas_height);
+
+        long last = (canvas_width & 63) == 0 ? -1L : (1L << (canvas_width & 63)) - 1;
+        Arrays.fill(bits, 0L);
+        for (int y = 0; y < canvas_height; y++) {
+            int base = (y - y0) * stride - wx0;
+            for (int w = 0; w < words; w++) {
+                bits[base + w] = (w == words - 1) ? last : -1L;
+            }
+        }
+        count = canvas_width * canvas_height;
+    }
+
+    public boolean contains(int x, int y) {
+        if (bits == null || x < 0 || x >= canvas_width || y < y0 || y >= y0 + rows) {
+            return false;
+        }
+        int w = (x >> 6) - wx0;
+        if (w < 0 || w >= stride) {
+            return false;
+        }
+        return (bits[(y - y0) * stride + w] & (1L << x)) != 0;
+    }
+
+    /**
+     * @return true if the pixel was not in the set
+     */
+    public boolean add(int x, int y) {
+        if (x < 0 || x >= canvas_width || y < 0 || y >= canvas_height) {
+            throw new IndexOutOfBoundsException("(" + x + ", " + y + ") is out of the canvas");
+        }
+        int wx = x >> 6;
+        if (bits == null || wx < wx0 || wx >= wx0 + stride || y < y0 || y >= y0 + rows) {
+            grow(wx, y);
+        }
+
+        int index = (y - y0) * stride + wx - wx0;
+        long mask = 1L << x;
+        if ((bits[index] & mask) != 0) {
+            return false;
+        }
+        bits[index] |= mask;
+        count++;
+        return true;
+    }
+
+    /**
+     * Add pixels from (left, y) to (right, y), both inclusive
+     */
+    public void addSpan(int y, int left, int right) {
+        if (left < 0 || right >= canvas_width || y < 0 || y >= canvas_height || left > right) {
+            throw new IndexOutOfBoundsException("span " + left + "-" + right + " of row " + y + " is out of the canvas");
+        }
+        if (bits == null || (left >> 6) < wx0 || (right >> 6) >= wx0 + stride || y < y0 || y >= y0 + rows) {
+            grow(left >> 6, y);
+            grow(right >> 6, y);
+        }
+
+        int base = (y - y0) * stride - wx0;
+        for (int w = left >> 6; w <= right >> 6; w++) {
+            long before = bits[base + w];
+            long after = before | spanMask(w, left, right);
+            bits[base + w] = after;
+            count += Long.bitCount(after) - Long.bitCount(before);
+        }
+    }
+
+    /**
+     * Remove pixels from (left, y) to (right, y), both inclusive
+     */
+    public void removeSpan(int y, int left, int right) {
+        if (bits == null || y < y0 || y >= y0 + rows) {
+            return;
+        }
+        int from = Math.max(Math.max(left, 0) >> 6, wx0);
+        int to = Math.min(Math.min(right, canvas_width - 1) >> 6, wx0 + stride - 1);
+
+        int base = (y - y0) * stride - wx0;
+        for (int w = from; w <= to; w++) {
+            long before = bits[base + w];
+            long after = before & ~spanMask(w, left, right);
+            bits[base + w] = after;
+            count -= Long.bitCount(before) - Long.bitCount(after);
+        }
+    }
+
+    /**
+     * Bits of word 'w' which are within [left, right]
+     */
+    private static long spanMask(int w, int left, int right) {
+        long mask = -1L;
+        if (left > w << 6) {
+            mask &= -1L << left;
+        }
+        if (right < (w << 6) + 63) {
+            mask &= -1L >>> (63 - (right & 63));
+        }
+        return mask;
+    }
+
+    /**
+     * @return true if the pixel was in the set
+     */
+    public boolean remove(int x, int y) {
+        if (!contains(x, y)) {
+            return false;
+        }
+        bits[(y - y0) * stride + (x >> 6) - wx0] &= ~(1L << x);
+        count--;
+        return true;
+    }
+
+    /**
+     * Union: add all pixels of 'other'
+     */
+    public void addAll(PixelSet other) {
+        if (other.isEmpty()) {
+            return;
+        }
+        ensureBox(other.wx0, other.wx0 + other.stride, other.y0, other.y0 + other.rows);
+
+        for (int r = 0; r < other.rows; r++) {
+            int src = r * other.stride;
+            int dst = (other.y0 + r - y0) * stride + other.wx0 - wx0;
+            for (int w = 0; w < other.stride; w++) {
+                long before = bits[dst + w];
+                long after = before | other.bits[src + w];
+                if (after != before) {
+                    bits[dst + w] = after;
+                    count += Long.bitCount(after) - Long.bitCount(before);
+                }
+            }
+        }
+    }
+
+    /**
+     * Difference: remove all pixels of 'other'
+     */
+    public void removeAll(PixelSet other) {
+        if (isEmpty() || other.isEmpty()) {
+            return;
+        }
+        int from_y = Math.max(y0, other.y0), to_y = Math.min(y0 + rows, other.y0 + other.rows);
+        int from_w = Math.max(wx0, other.wx0), to_w = Math.min(wx0 + stride, other.wx0 + other.stride);
+
+        for (int y = from_y; y < to_y; y++) {
+            int src = (y - other.y0) * other.stride - other.wx0;
+            int dst = (y - y0) * stride - wx0;
+            for (int w = from_w; w < to_w; w++) {
+                long before = bits[dst + w];
+                long after = before & ~other.bits[src + w];
+                if (after != before) {
+                    bits[dst + w] = after;
+                    count -= Long.bitCount(before) - Long.bitCount(after);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the first pixel whose canvas index is equal to or larger than 'from'
+     * @param from Canvas index (y * canvas_width + x) to start searching
+     * @return Canvas index of the found pixel, or -1 if there is no such pixel
+     */
+    public int nextPixel(int from) {
+        if (count == 0) {
+            return -1;
+        }
+        int y = from / canvas_width, x = from % canvas_width;
+        if (y < y0) {
+            y = y0;
+            x = 0;
+        }
+
+        for (; y < y0 + rows; y++, x = 0) {
+            int w = Math.max((x >> 6) - wx0, 0);
+            if (w >= stride) {
+                continue;
+            }
+            int base = (y - y0) * stride;
+            long word = bits[base + w];
+            if (w == (x >> 6) - wx0) {
+                // ignore the pixels on the left of 'x'
+                word &= -1L << x;
+            }
+            while (true) {
+                if (word != 0) {
+                    return y * canvas_width + ((wx0 + w) << 6) + Long.numberOfTrailingZeros(word);
+                }
+                if (++w >= stride) {
+                    break;
+                }
+                word = bits[base + w];
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Find the end of the run of pixels from 'from' in its row, so that the runs of a set are iterated as
+     * <pre>
+     *     for (int i = set.nextPixel(0); i >= 0; i = set.nextPixel(end)) { int end = set.runEnd(i); ... }
+     * </pre>
+     * @param from Canvas index of a pixel in the set
+     * @return Canvas index just after the last pixel of the run, which ends at the end of the row at the latest
+     */
+    public int runEnd(int from) {
+        int y = from / canvas_width, x = from % canvas_width;
+        if (!contains(x, y)) {
+            return from;
+        }
+
+        int base = (y - y0) * stride, w = (x >> 6) - wx0;
+        // the pixels not in the set on the right of 'x'
+        long gaps = ~bits[base + w] & (-1L << x);
+        while (gaps == 0 && ++w < stride) {
+            gaps = ~bits[base + w];
+        }
+        int end = w < stride ? ((wx0 + w) << 6) + Long.numberOfTrailingZeros(gaps) : (wx0 + stride) << 6;
+        return y * canvas_width + Math.min(end, canvas_width);
+    }
+
+    /**
+     * Remove the pixels whose values are at most 'limit'. Only the pixels of the set are read.
+     * @param values Values of the pixels indexed by canvas index, e.g. squared distances
+     */
+    public void removeAtMost(int[] values, int limit) {
+        if (count == 0) {
+            return;
+        }
+        for (int r = 0; r < rows; r++) {
+            int base = r * stride, row = (y0 + r) * canvas_width;
+            for (int w = 0; w < stride; w++) {
+                long word = bits[base + w], removed = 0;
+                for (long rest = word; rest != 0; rest &= rest - 1) {
+                    int bit = Long.numberOfTrailingZeros(rest);
+                    if (values[row + ((wx0 + w) << 6) + bit] <= limit) {
+                        removed |= 1L << bit;
+                    }
+                }
+                if (removed != 0) {
+                    bits[base + w] = word & ~removed;
+                    count -= Long.bitCount(removed);
+                }
+            }
+        }
+    }
+
+    /**
+     * Make the bitmap cover the pixel of word 'wx' in row 'y'.
+     * The box is at least doubled in the growing direction so that adding
+     * pixels one by one costs amortized constant time.
+     */
+    private void grow(int wx, int y) {
+        if (bits == null) {
+            ensureBox(wx, wx + 1, y, y + 1);
+            return;
+        }
+        int words = (canvas_width + 63) >> 6;
+        int from_w = wx0, to_w = wx0 + stride, from_y = y0, to_y = y0 + rows;
+        if (wx < from_w) from_w = Math.max(0, Math.min(wx, from_w - stride));
+        if (wx >= to_w) to_w = Math.min(words, Math.max(wx + 1, to_w + stride));
+        if (y < from_y) from_y = Math.max(0, Math.min(y, from_y - rows));
+        if (y >= to_y) to_y = Math.min(canvas_height, Math.max(y + 1, to_y + rows));
+        ensureBox(from_w, to_w, from_y, to_y);
+    }
+
+    /**
+     * Make the bitmap cover words [from_w, to_w) of rows [from_y, to_y)
+     */
+    private void ensureBox(int from_w, int to_w, int from_y, int to_y) {
+        if (bits != null) {
+            if (from_w >= wx0 && to_w <= wx0 + stride && from_y >= y0 && to_y <= y0 + rows) {
+                return;
+            }
+            from_w = Math.min(from_w, wx0);
+            to_w = Math.max(to_w, wx0 + stride);
+            from_y = Math.min(from_y, y0);
+            to_y = Math.max(to_y, y0 + rows);
+        }
+
+        int new_stride = to_w - from_w, new_rows = to_y - from_y;
+        long[] new_bits = new long[new_stride * new_rows];
+        if (bits != null) {
+            for (int r = 0; r < rows; r++) {
+                System.arraycopy(bits, r * stride, new_bits, (y0 + r - from_y) * new_stride + wx0 - from_w, stride);
+            }
+        }
+
+        this.bits = new_bits;
+        this.wx0 = from_w;
+        this.y0 = from_y;
+        this.stride = new_stride;
+        this.rows = new_rows;
+    }
+}
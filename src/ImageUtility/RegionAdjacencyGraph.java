@@ -0,0 +1,162 @@
+package ImageUtility;
+
+import java.util.Arrays;
+
+/**
+ * Adjacency of the regions of a label map in compressed sparse row arrays.
+ *
+ * The regions of a segmentation are mostly separated by border pixels, so
+ * two regions are adjacent where they touch, or face each other across a
+ * run of at most MAX_GAP unlabeled pixels in a row or a column. The length
+ * of the shared boundary is the number of such rows and columns. The
+ * neighbors of region r are neighbors[offsets[r]] ... neighbors[offsets[r + 1] - 1]
+ * in increasing order, and every edge is stored once in each direction.
+ * The mean Lab color and the pixel count of each region are kept with it.
+ */
+public class RegionAdjacencyGraph {
+
+    // the longest run of unlabeled pixels across which two regions are adjacent
+    public static final int MAX_GAP = 8;
+
+    private final int regionCount;
+    private final int[] offsets, neighbors, lengths;
+
+    private final int[] count;
+    private final double[] meanL, meanA, meanB;
+
+    /**
+     * Build the graph of a label map
+     * @param labels Row-major labels less than regionCount; pixels without a region are less than 0
+     * @param statistics Statistics of the regions indexed by their labels
+     */
+    public RegionAdjacencyGraph(int[] labels, int w, int h, int regionCount, RegionStatistics statistics) {
+        this.regionCount = regionCount;
+
+        // pairs of adjacent labels, (smaller << 32 | larger), once per row or column
+        long[] pairs = new long[Math.max(16, regionCount * 4)];
+        int pairCount = 0;
+
+        // the last labeled pixel of each column
+        int[] lastLabel = new int[w], lastY = new int[w];
+        Arrays.fill(lastLabel, -1);
+
+        for (int y = 0; y < h; y++) {
+            int row = y * w;
+            int previous = -1, previousX = 0;
+            for (int x = 0; x < w; x++) {
+                int label = labels[row + x];
+                if (label < 0) {
+                    continue;
+                }
+                if (previous >= 0 && previous != label && x - previousX - 1 <= MAX_GAP) {
+                    if (pairCount == pairs.length) {
+                        pairs = Arrays.copyOf(pairs, pairCount * 2);
+                    }
+                    pairs[pairCount++] = pair(previous, label);
+                }
+                if (lastLabel[x] >= 0 && lastLabel[x] != label && y - lastY[x] - 1 <= MAX_GAP) {
+                    if (pairCount == pairs.length) {
+                        pairs = Arrays.copyOf(pairs, pairCount * 2);
+                    }
+                    pairs[pairCount++] = pair(lastLabel[x], label);
+                }
+                previous = label;
+                previousX = x;
+                lastLabel[x] = label;
+                lastY[x] = y;
+            }
+        }
+        Arrays.sort(pairs, 0, pairCount);
+
+        // the degree of each region, then the rows
+        offsets = new int[regionCount + 1];
+        int edgeCount = 0;
+        for (int i = 0; i < pairCount; i++) {
+            if (i == 0 || pairs[i] != pairs[i - 1]) {
+                offsets[(int) (pairs[i] >>> 32) + 1]++;
+                offsets[(int) pairs[i] + 1]++;
+                edgeCount++;
+            }
+        }
+        for (int r = 0; r < regionCount; r++) {
+            offsets[r + 1] += offsets[r];
+        }
+
+        neighbors = new int[2 * edgeCount];
+        lengths = new int[2 * edgeCount];
+        // the pairs are sorted, so each row receives its smaller neighbors and then its larger ones in order
+        int[] next = Arrays.copyOf(offsets, regionCount);
+        for (int i = 0; i < pairCount; ) {
+            int j = i;
+            while (j < pairCount && pairs[j] == pairs[i]) {
+                j++;
+            }
+            int a = (int) (pairs[i] >>> 32), b = (int) pairs[i];
+            neighbors[next[a]] = b;
+            lengths[next[a]++] = j - i;
+            neighbors[next[b]] = a;
+            lengths[next[b]++] = j - i;
+            i = j;
+        }
+
+        count = new int[regionCount];
+        meanL = new double[regionCount];
+        meanA = new double[regionCount];
+        meanB = new double[regionCount];
+        for (int r = 0; r < regionCount; r++) {
+            count[r] = statistics.getCount(r);
+            meanL[r] = statistics.getMeanL(r);
+            meanA[r] = statistics.getMeanA(r);
+            meanB[r] = statistics.getMeanB(r);
+        }
+    }
+
+    private static long pair(int a, int b) {
+        return a < b ? (long) a << 32 | b : (long) b << 32 | a;
+    }
+
+    public int getRegionCount() {
+        return regionCount;
+    }
+
+    /**
+     * @return The number of edges, each of which is stored in both directions
+     */
+    public int getEdgeCount() {
+        return neighbors.length / 2;
+    }
+
+    /**
+     * @return Row offsets: the neighbors of region r are at [offsets[r], offsets[r + 1])
+     */
+    public int[] getOffsets() {
+        return offsets;
+    }
+
+    public int[] getNeighbors() {
+        return neighbors;
+    }
+
+    /**
+     * @return The shared boundary length of each entry of getNeighbors()
+     */
+    public int[] getBoundaryLengths() {
+        return lengths;
+    }
+
+    public int getCount(int region) {
+        return count[region];
+    }
+
+    public double getMeanL(int region) {
+        return meanL[region];
+    }
+
+    public double getMeanA(int region) {
+        return meanA[region];
+    }
+
+    public double getMeanB(int region) {
+        return meanB[region];
+    }
+}
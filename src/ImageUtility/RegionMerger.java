@@ -0,0 +1,226 @@
+package ImageUtility;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical merging of adjacent regions by the Lab distance of their mean colors.
+ *
+ * The edges of a region adjacency graph wait in a priority queue ordered by
+ * distance, and the closest pair of regions is merged first. The merged
+ * region takes the pixel weighted mean of the two, and its edges are queued
+ * again with the new distances; the entries of the two old regions are
+ * recognized by their versions and dropped when they come out of the queue.
+ * Each merge visits the neighbors of the two regions once, so merging a
+ * graph of E edges takes O(E log E) for segmentations of bounded degree.
+ * Merging can be continued with a lower target to coarsen the result further.
+ */
+public class RegionMerger {
+
+    private final UnionFind sets = new UnionFind();
+    private int regionCount;
+
+    // pixel counts and Lab sums of the representative labels
+    private final long[] count;
+    private final double[] sumL, sumA, sumB;
+
+    // neighbors of the representative labels, which may refer to merged labels
+    private final int[][] adjacency;
+    private final int[] degree;
+
+    // incremented whenever the mean of a label changes or it stops being a representative
+    private final int[] version;
+
+    // marks of the neighbors visited by a merge
+    private final int[] mark;
+    private int stamp = 0;
+
+    // binary heap of edges ordered by distance
+    private double[] heapDistance = new double[16];
+    private int[] heapA = new int[16], heapB = new int[16], heapVersionA = new int[16], heapVersionB = new int[16];
+    private int heapSize = 0;
+
+    public RegionMerger(RegionAdjacencyGraph graph) {
+        int n = graph.getRegionCount();
+        int[] offsets = graph.getOffsets(), neighbors = graph.getNeighbors();
+
+        regionCount = n;
+        count = new long[n];
+        sumL = new double[n];
+        sumA = new double[n];
+        sumB = new double[n];
+        adjacency = new int[n][];
+        degree = new int[n];
+        version = new int[n];
+        mark = new int[n];
+        for (int r = 0; r < n; r++) {
+            sets.makeSet();
+            count[r] = graph.getCount(r);
+            sumL[r] = graph.getMeanL(r) * count[r];
+            sumA[r] = graph.getMeanA(r) * count[r];
+            sumB[r] = graph.getMeanB(r) * count[r];
+            adjacency[r] = Arrays.copyOfRange(neighbors, offsets[r], offsets[r + 1]);
+            degree[r] = adjacency[r].length;
+        }
+
+        for (int r = 0; r < n; r++) {
+            for (int k = offsets[r]; k < offsets[r + 1]; k++) {
+                if (neighbors[k] > r) {
+                    push(r, neighbors[k]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of regions left
+     */
+    public int getRegionCount() {
+        return regionCount;
+    }
+
+    /**
+     * Merge the closest adjacent regions until 'targetCount' regions are left,
+     * or the closest pair is farther apart than 'maxDistance'
+     * @param targetCount The number of regions to be left, or 0 to be limited only by the distance
+     * @param maxDistance The largest Lab distance of the mean colors of merged regions,
+     *                    or Double.POSITIVE_INFINITY to be limited only by the count
+     * @return The number of regions left
+     */
+    public int merge(int targetCount, double maxDistance) {
+        while (regionCount > targetCount && heapSize > 0 && heapDistance[0] <= maxDistance) {
+            int a = heapA[0], b = heapB[0];
+            boolean current = version[a] == heapVersionA[0] && version[b] == heapVersionB[0];
+            pop();
+            if (current) {
+                union(a, b);
+            }
+        }
+        return regionCount;
+    }
+
+    /**
+     * @return The new label of each region of the graph, numbered by the smallest region of each merged set
+     */
+    public int[] getLabels() {
+        int n = count.length;
+        int[] labels = new int[n], labelOf = new int[n];
+        Arrays.fill(labelOf, -1);
+        int next = 0;
+        for (int r = 0; r < n; r++) {
+            int root = sets.find(r);
+            if (labelOf[root] < 0) {
+                labelOf[root] = next++;
+            }
+            labels[r] = labelOf[root];
+        }
+        return labels;
+    }
+
+    private void union(int a, int b) {
+        int root = sets.union(a, b), other = root == a ? b : a;
+        regionCount--;
+        version[a]++;
+        version[b]++;
+
+        count[root] += count[other];
+        sumL[root] += sumL[other];
+        sumA[root] += sumA[other];
+        sumB[root] += sumB[other];
+
+        // the neighbors of both, each once, without the merged regions
+        stamp++;
+        mark[root] = stamp;
+        int[] merged = new int[degree[root] + degree[other]];
+        int size = collect(adjacency[root], degree[root], merged, 0);
+        size = collect(adjacency[other], degree[other], merged, size);
+        adjacency[root] = merged;
+        degree[root] = size;
+        adjacency[other] = null;
+        degree[other] = 0;
+
+        for (int k = 0; k < size; k++) {
+            push(root, merged[k]);
+        }
+    }
+
+    /**
+     * Append the representatives of the unmarked neighbors in list[0, length) to 'merged', and mark them
+     * @return The new size of 'merged'
+     */
+    private int collect(int[] list, int length, int[] merged, int size) {
+        for (int k = 0; k < length; k++) {
+            int n = sets.find(list[k]);
+            if (mark[n] != stamp) {
+                mark[n] = stamp;
+                merged[size++] = n;
+            }
+        }
+        return size;
+    }
+
+    private double distance(int a, int b) {
+        double dl = sumL[a] / count[a] - sumL[b] / count[b];
+        double da = sumA[a] / count[a] - sumA[b] / count[b];
+        double db = sumB[a] / count[a] - sumB[b] / count[b];
+        return Math.sqrt(dl * dl + da * da + db * db);
+    }
+
+    private void push(int a, int b) {
+        if (heapSize == heapDistance.length) {
+            int capacity = heapSize * 2;
+            heapDistance = Arrays.copyOf(heapDistance, capacity);
+            heapA = Arrays.copyOf(heapA, capacity);
+            heapB = Arrays.copyOf(heapB, capacity);
+            heapVersionA = Arrays.copyOf(heapVersionA, capacity);
+            heapVersionB = Arrays.copyOf(heapVersionB, capacity);
+        }
+        double d = distance(a, b);
+
+        // sift up
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heapDistance[parent] <= d) {
+                break;
+            }
+            move(parent, i);
+            i = parent;
+        }
+        heapDistance[i] = d;
+        heapA[i] = a;
+        heapB[i] = b;
+        heapVersionA[i] = version[a];
+        heapVersionB[i] = version[b];
+    }
+
+    private void pop() {
+        int last = --heapSize;
+        double d = heapDistance[last];
+
+        // sift the last entry down from the top
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heapDistance[child + 1] < heapDistance[child]) {
+                child++;
+            }
+            if (d <= heapDistance[child]) {
+                break;
+            }
+            move(child, i);
+            i = child;
+        }
+        move(last, i);
+    }
+
+    private void move(int from, int to) {
+        heapDistance[to] = heapDistance[from];
+        heapA[to] = heapA[from];
+        heapB[to] = heapB[from];
+        heapVersionA[to] = heapVersionA[from];
+        heapVersionB[to] = heapVersionB[from];
+    }
+}
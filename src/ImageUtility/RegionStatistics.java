@@ -0,0 +1,225 @@
+package ImageUtility;
+
+import java.util.Arrays;
+
+import static ImageUtility.ColorConverter.*;
+
+/**
+ * Statistics of labeled regions in primitive arrays indexed by label.
+ *
+ * The pixel count, Lab sums and sums of squares, bounding box and the number
+ * of border contacts are accumulated span by span while the regions are
+ * filled, so the statistics of a region are available in O(1) without
+ * visiting its pixels again. Sums are kept in long, so they do not overflow.
+ */
+public class RegionStatistics {
+
+    private int size = 0;
+
+    private int[] count = new int[0];
+    private long[] sumL = new long[0], sumA = new long[0], sumB = new long[0];
+    private long[] sumLL = new long[0], sumAA = new long[0], sumBB = new long[0];
+    private int[] left = new int[0], right = new int[0], top = new int[0], bottom = new int[0];
+    private int[] borderContacts = new int[0];
+
+    /**
+     * Remove all regions. The arrays are kept for reuse.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return The number of labels, which is the largest label added + 1
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Make sure that labels [0, labels) exist; new labels are empty
+     */
+    public void ensureLabels(int labels) {
+        if (labels > count.length) {
+            int capacity = Math.max(labels, count.length * 2);
+            count = Arrays.copyOf(count, capacity);
+            sumL = Arrays.copyOf(sumL, capacity);
+            sumA = Arrays.copyOf(sumA, capacity);
+            sumB = Arrays.copyOf(sumB, capacity);
+            sumLL = Arrays.copyOf(sumLL, capacity);
+            sumAA = Arrays.copyOf(sumAA, capacity);
+            sumBB = Arrays.copyOf(sumBB, capacity);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            top = Arrays.copyOf(top, capacity);
+            bottom = Arrays.copyOf(bottom, capacity);
+            borderContacts = Arrays.copyOf(borderContacts, capacity);
+        }
+        for (int label = size; label < labels; label++) {
+            count[label] = 0;
+            sumL[label] = sumA[label] = sumB[label] = 0;
+            sumLL[label] = sumAA[label] = sumBB[label] = 0;
+            left[label] = top[label] = Integer.MAX_VALUE;
+            right[label] = bottom[label] = -1;
+            borderContacts[label] = 0;
+        }
+        size = Math.max(size, labels);
+    }
+
+    /**
+     * Add the pixels from (left, y) to (right, y), both inclusive, to a region
+     * @param labData Lab data of the image, whose width is 'width'
+     */
+    public void addSpan(int label, int y, int left, int right, int[] labData, int width) {
+        long l = 0, a = 0, b = 0, ll = 0, aa = 0, bb = 0;
+        for (int i = y * width + left; i <= y * width + right; i++) {
+            int c = labData[i];
+            int cl = Lab.l(c), ca = Lab.a(c), cb = Lab.b(c);
+            l += cl;
+            a += ca;
+            b += cb;
+            ll += cl * cl;
+            aa += ca * ca;
+            bb += cb * cb;
+        }
+
+        count[label] += right - left + 1;
+        sumL[label] += l;
+        sumA[label] += a;
+        sumB[label] += b;
+        sumLL[label] += ll;
+        sumAA[label] += aa;
+        sumBB[label] += bb;
+        if (left < this.left[label]) this.left[label] = left;
+        if (right > this.right[label]) this.right[label] = right;
+        if (y < this.top[label]) this.top[label] = y;
+        if (y > this.bottom[label]) this.bottom[label] = y;
+    }
+
+    /**
+     * Count a border pixel which a region has reached
+     */
+    public void addBorderContact(int label) {
+        borderContacts[label]++;
+    }
+
+    /**
+     * Add the statistics of region 'from' to region 'into', and empty 'from'
+     */
+    public void merge(int into, int from) {
+        if (into == from) {
+            return;
+        }
+        add(into, this, from);
+
+        count[from] = 0;
+        sumL[from] = sumA[from] = sumB[from] = 0;
+        sumLL[from] = sumAA[from] = sumBB[from] = 0;
+        left[from] = top[from] = Integer.MAX_VALUE;
+        right[from] = bottom[from] = -1;
+        borderContacts[from] = 0;
+    }
+
+    /**
+     * Add the statistics of 'fromLabel' of a table, which may be this one, to 'label'
+     */
+    public void add(int label, RegionStatistics from, int fromLabel) {
+        count[label] += from.count[fromLabel];
+        sumL[label] += from.sumL[fromLabel];
+        sumA[label] += from.sumA[fromLabel];
+        sumB[label] += from.sumB[fromLabel];
+        sumLL[label] += from.sumLL[fromLabel];
+        sumAA[label] += from.sumAA[fromLabel];
+        sumBB[label] += from.sumBB[fromLabel];
+        left[label] = Math.min(left[label], from.left[fromLabel]);
+        right[label] = Math.max(right[label], from.right[fromLabel]);
+        top[label] = Math.min(top[label], from.top[fromLabel]);
+        bottom[label] = Math.max(bottom[label], from.bottom[fromLabel]);
+        borderContacts[label] += from.borderContacts[fromLabel];
+    }
+
+    /**
+     * Overwrite the statistics of 'label' by those of 'fromLabel' of another table
+     */
+    public void copy(int label, RegionStatistics from, int fromLabel) {
+        count[label] = from.count[fromLabel];
+        sumL[label] = from.sumL[fromLabel];
+        sumA[label] = from.sumA[fromLabel];
+        sumB[label] = from.sumB[fromLabel];
+        sumLL[label] = from.sumLL[fromLabel];
+        sumAA[label] = from.sumAA[fromLabel];
+        sumBB[label] = from.sumBB[fromLabel];
+        left[label] = from.left[fromLabel];
+        right[label] = from.right[fromLabel];
+        top[label] = from.top[fromLabel];
+        bottom[label] = from.bottom[fromLabel];
+        borderContacts[label] = from.borderContacts[fromLabel];
+    }
+
+    public int getCount(int label) {
+        return count[label];
+    }
+
+    /**
+     * @return The mean color rounded to the nearest Lab value, or 0 for an empty region
+     */
+    public int getMeanColor(int label) {
+        int n = count[label];
+        if (n == 0) {
+            return 0;
+        }
+        return Lab.lab(
+                (int) Math.round(sumL[label] / (double) n),
+                (int) Math.round(sumA[label] / (double) n),
+                (int) Math.round(sumB[label] / (double) n));
+    }
+
+    /**
+     * @return The mean L without rounding, or 0 for an empty region
+     */
+    public double getMeanL(int label) {
+        return count[label] == 0 ? 0 : sumL[label] / (double) count[label];
+    }
+
+    public double getMeanA(int label) {
+        return count[label] == 0 ? 0 : sumA[label] / (double) count[label];
+    }
+
+    public double getMeanB(int label) {
+        return count[label] == 0 ? 0 : sumB[label] / (double) count[label];
+    }
+
+    /**
+     * @return The variance of the L, a and b values summed up
+     */
+    public double getColorVariance(int label) {
+        int n = count[label];
+        if (n == 0) {
+            return 0;
+        }
+        double ml = sumL[label] / (double) n, ma = sumA[label] / (double) n, mb = sumB[label] / (double) n;
+        return sumLL[label] / (double) n - ml * ml
+                + sumAA[label] / (double) n - ma * ma
+                + sumBB[label] / (double) n - mb * mb;
+    }
+
+    public int getLeft(int label) {
+        return left[label];
+    }
+
+    public int getRight(int label) {
+        return right[label];
+    }
+
+    public int getTop(int label) {
+        return top[label];
+    }
+
+    public int getBottom(int label) {
+        return bottom[label];
+    }
+
+    public int getBorderContacts(int label) {
+        return borderContacts[label];
+    }
+}
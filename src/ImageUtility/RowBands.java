@@ -0,0 +1,113 @@
+package ImageUtility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Splits an image into bands of rows and processes them on an executor.
+ *
+ * Filters read their input planes directly, so the halo rows around a band
+ * are simply read from the shared input and nothing is copied. Each band
+ * writes only its own rows of the output, in row order, so the result is
+ * identical to processing the whole image sequentially.
+ */
+public class RowBands {
+
+    /**
+     * Work on a band of rows
+     */
+    public interface Task {
+        /**
+         * Process rows [from, to)
+         */
+        public void run(int from, int to);
+    }
+
+    // process everything on the calling thread
+    public static final RowBands SEQUENTIAL = new RowBands(null, 1);
+
+    // minimum number of rows of a band, to keep the overhead small
+    private static final int MIN_ROWS = 8;
+
+    private static RowBands shared;
+
+    private final ExecutorService executor;
+    private final int parallelism;
+
+    /**
+     * @param executor Executor which runs the bands, or null to run them on the calling thread
+     * @param parallelism The number of threads of the executor
+     */
+    public RowBands(ExecutorService executor, int parallelism) {
+        this.executor = executor;
+        this.parallelism = executor == null ? 1 : Math.max(1, parallelism);
+    }
+
+    /**
+     * @return Bands running on a shared pool of daemon threads, one per core
+     */
+    public static synchronized RowBands shared() {
+        if (shared == null) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            shared = new RowBands(Executors.newFixedThreadPool(cores, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "RowBands");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }), cores);
+        }
+        return shared;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Run 'task' over rows [0, height) and wait for all bands
+     */
+    public void run(int height, final Task task) {
+        // a few bands per thread to balance uneven rows
+        int bands = Math.min(parallelism * 4, height / MIN_ROWS);
+        if (parallelism == 1 || bands <= 1) {
+            task.run(0, height);
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int band = 1; band < bands; band++) {
+            final int from = (int) ((long) height * band / bands);
+            final int to = (int) ((long) height * (band + 1) / bands);
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    task.run(from, to);
+                }
+            }));
+        }
+
+        // the calling thread takes the first band
+        task.run(0, (int) ((long) height / bands));
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while filtering", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package ImageUtility;
+
+import java.util.Arrays;
+
+/**
+ * Allocation free scanline flood filling.
+ *
+ * The stack holds packed ints instead of Points, visited pixels are
+ * tracked in a bitmap kept between fills, and filled pixels are handed
+ * to the target span by span instead of being collected into a set. isWall is called at most once per pixel and fill.
+ * A ScanlineFill can be reused for any number of fills, but not by
+ * several threads at once.
+ */
+public class ScanlineFill {
+
+    /**
+     * Area to be filled
+     */
+    public interface Target {
+        /**
+         * Define if point(x, y) is a wall or not
+         * @return true if point(x, y) is a wall
+         */
+        public boolean isWall(int x, int y);
+
+        /**
+         * Receive filled pixels from (left, y) to (right, y), both inclusive
+         */
+        public void fillSpan(int y, int left, int right);
+    }
+
+    private int width, height;
+
+    // pixels which are known to be filled (or queued), and pixels known to be walls
+    private long[] visited, walls;
+    private int stride;
+
+    // stack of runs: (y * width + left, right)
+    private int[] stack = new int[256];
+    private int sp;
+
+    // bounding box of the touched pixels, cleared after each fill
+    private int touched_top, touched_bottom, touched_left, touched_right;
+
+    public ScanlineFill(int canvas_width, int canvas_height) {
+        setCanvasSize(canvas_width, canvas_height);
+    }
+
+    /**
+     * Change the canvas size. The bitmaps are reallocated only when they become too small.
+     */
+    public void setCanvasSize(int canvas_width, int canvas_height) {
+        this.width = canvas_width;
+        this.height = canvas_height;
+        this.stride = (canvas_width + 63) >> 6;
+
+        int size = stride * canvas_height;
+        if (visited == null || visited.length < size) {
+            visited = new long[size];
+            walls = new long[size];
+        }
+        else {
+            Arrays.fill(visited, 0L);
+            Arrays.fill(walls, 0L);
+        }
+    }
+
+    /**
+     * Fill the area connected to the origin, which must not be a wall
+     * @return The number of filled pixels
+     */
+    public int execute(int origin_x, int origin_y, Target target) {
+        int filled = 0;
+        touched_top = touched_bottom = origin_y;
+        touched_left = touched_right = origin_x;
+
+        sp = 0;
+        mark(visited, origin_x, origin_y);
+        push(origin_y * width + origin_x, origin_x);
+
+        while (sp > 0) {
+            int right = stack[--sp];
+            int start = stack[--sp];
+            int y = start / width;
+            int left = start - y * width;
+
+            // extend the run to the left and the right terminal
+            while (left > 0 && isOpen(left - 1, y, target)) {
+                left--;
+            }
+            while (right < width - 1 && isOpen(right + 1, y, target)) {
+                right++;
+            }
+            if (left < touched_left) touched_left = left;
+            if (right > touched_right) touched_right = right;
+
+            target.fillSpan(y, left, right);
+            filled += right - left + 1;
+
+            // queue the runs of the upper and the lower rows
+            for (int d = -1; d <= 1; d += 2) {
+                int yy = y + d;
+                if (yy < 0 || yy >= height) {
+                    continue;
+                }
+                if (yy < touched_top) touched_top = yy;
+                if (yy > touched_bottom) touched_bottom = yy;
+
+                int run = -1;
+                for (int x = left; x <= right; x++) {
+                    if (isOpen(x, yy, target)) {
+                        if (run < 0) {
+                            run = x;
+                        }
+                    }
+                    else if (run >= 0) {
+                        push(yy * width + run, x - 1);
+                        run = -1;
+                    }
+                }
+                if (run >= 0) {
+                    push(yy * width + run, right);
+                }
+            }
+        }
+
+        clearTouched();
+        return filled;
+    }
+
+    /**
+     * Check if (x, y) is neither visited nor a wall, and mark it as visited if so.
+     * The result of isWall is remembered so that it is asked only once.
+     */
+    private boolean isOpen(int x, int y, Target target) {
+        int index = y * stride + (x >> 6);
+        long mask = 1L << x;
+        if (((visited[index] | walls[index]) & mask) != 0) {
+            return false;
+        }
+        if (target.isWall(x, y)) {
+            walls[index] |= mask;
+            return false;
+        }
+        visited[index] |= mask;
+        return true;
+    }
+
+    private void mark(long[] bitmap, int x, int y) {
+        bitmap[y * stride + (x >> 6)] |= 1L << x;
+    }
+
+    private void push(int start, int right) {
+        if (sp + 2 > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[sp++] = start;
+        stack[sp++] = right;
+    }
+
+    /**
+     * Reset the bitmaps in the bounding box of the last fill.
+     * Walls are found at most one pixel outside of filled runs.
+     */
+    private void clearTouched() {
+        int from = Math.max(touched_left - 1, 0) >> 6;
+        int to = Math.min(touched_right + 1, width - 1) >> 6;
+        for (int y = touched_top; y <= touched_bottom; y++) {
+            Arrays.fill(visited, y * stride + from, y * stride + to + 1, 0L);
+            Arrays.fill(walls, y * stride + from, y * stride + to + 1, 0L);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package ImageUtility;
+
+import java.util.Arrays;
+
+/**
+ * Disjoint sets of the integer labels 0, 1, 2, ... stored in primitive arrays,
+ * with path compression and union by rank.
+ * The arrays grow as labels are made and are kept by clear() for reuse.
+ */
+public class UnionFind {
+
+    private int[] parent;
+    private byte[] rank;
+
+    // the number of labels
+    private int size = 0;
+
+    public UnionFind() {
+        this(16);
+    }
+
+    /**
+     * @param capacity The expected number of labels
+     */
+    public UnionFind(int capacity) {
+        parent = new int[Math.max(1, capacity)];
+        rank = new byte[parent.length];
+    }
+
+    /**
+     * Remove all labels
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Make a new label in a set of its own
+     * @return The new label, which is the number of labels made before
+     */
+    public int makeSet() {
+        if (size == parent.length) {
+            parent = Arrays.copyOf(parent, size * 2);
+            rank = Arrays.copyOf(rank, size * 2);
+        }
+        parent[size] = size;
+        rank[size] = 0;
+        return size++;
+    }
+
+    /**
+     * @return The representative label of the set of 'label'
+     */
+    public int find(int label) {
+        int root = label;
+        while (parent[root] != root) {
+            root = parent[root];
+        }
+
+        // compress the path
+        while (parent[label] != root) {
+            int next = parent[label];
+            parent[label] = root;
+            label = next;
+        }
+        return root;
+    }
+
+    /**
+     * Merge the sets of two labels
+     * @return The representative label of the merged set
+     */
+    public int union(int a, int b) {
+        int ra = find(a), rb = find(b);
+        if (ra == rb) {
+            return ra;
+        }
+        if (rank[ra] < rank[rb]) {
+            int temp = ra;
+            ra = rb;
+            rb = temp;
+        }
+        parent[rb] = ra;
+        if (rank[ra] == rank[rb]) {
+            rank[ra]++;
+        }
+        return ra;
+    }
+
+    public boolean isSame(int a, int b) {
+        return find(a) == find(b);
+    }
+}
@@ -0,0 +1,97 @@
+package ImageUtility;
+
+import static ImageUtility.ColorConverter.*;
+
+/**
+ * Assignment of the unlabeled pixels of a label map to the nearest labeled regions.
+ *
+ * One breadth-first wavefront starts from every labeled pixel next to an
+ * unlabeled one and advances one 4-connected step per layer, so each pixel
+ * takes the label of the region it is closest to along unlabeled pixels.
+ * Where several regions reach a pixel in the same layer, the region whose
+ * mean color is closest to the color of the pixel wins. Every pixel is
+ * queued once, so the fill takes O(w * h).
+ */
+public class WavefrontFill {
+
+    // label of the pixels which belong to no region
+    public static final int NONE = -1;
+
+    /**
+     * Label every unlabeled pixel connected to a labeled one
+     * @param labels Row-major labels; NONE for unlabeled pixels, which receive labels
+     * @param labData Lab data of the image
+     * @param meanColors Mean Lab color of each label
+     * @param queue Array of at least w * h elements used as the queue, or null to allocate a new one
+     * @return The number of pixels labeled
+     */
+    public static int apply(int[] labels, int w, int h, int[] labData, int[] meanColors, int[] queue) {
+        int[] q = Filter.output(queue, w, h);
+
+        // the labeled pixels on the front
+        int tail = 0;
+        for (int y = 0; y < h; y++) {
+            int row = y * w;
+            for (int x = 0; x < w; x++) {
+                int i = row + x;
+                if (labels[i] != NONE && (x > 0 && labels[i - 1] == NONE || x + 1 < w && labels[i + 1] == NONE
+                        || y > 0 && labels[i - w] == NONE || y + 1 < h && labels[i + w] == NONE)) {
+                    q[tail++] = i;
+                }
+            }
+        }
+
+        // pixels reached in the current layer are labeled -(label + 2) until the layer is done,
+        // so that a closer color can still take them over
+        int head = 0, sources = tail;
+        while (head < tail) {
+            int layerEnd = tail;
+            for (; head < layerEnd; head++) {
+                int i = q[head], x = i % w, label = labels[i];
+                if (x > 0) {
+                    tail = reach(labels, labData, meanColors, q, tail, i - 1, label);
+                }
+                if (x + 1 < w) {
+                    tail = reach(labels, labData, meanColors, q, tail, i + 1, label);
+                }
+                if (i >= w) {
+                    tail = reach(labels, labData, meanColors, q, tail, i - w, label);
+                }
+                if (i + w < w * h) {
+                    tail = reach(labels, labData, meanColors, q, tail, i + w, label);
+                }
+            }
+            for (int k = layerEnd; k < tail; k++) {
+                labels[q[k]] = -labels[q[k]] - 2;
+            }
+        }
+
+        return tail - sources;
+    }
+
+    /**
+     * Reach pixel i from a region
+     * @return The new tail of the queue
+     */
+    private static int reach(int[] labels, int[] labData, int[] meanColors, int[] q, int tail, int i, int label) {
+        int current = labels[i];
+        if (current == NONE) {
+            labels[i] = -label - 2;
+            q[tail++] = i;
+        }
+        else if (current < NONE) {
+            // reached by another region in the same layer
+            int other = -current - 2;
+            if (other != label && squaredDistance(labData[i], meanColors[label])
+                    < squaredDistance(labData[i], meanColors[other])) {
+                labels[i] = -label - 2;
+            }
+        }
+        return tail;
+    }
+
+    private static int squaredDistance(int c1, int c2) {
+        int dl = Lab.l(c1) - Lab.l(c2), da = Lab.a(c1) - Lab.a(c2), db = Lab.b(c1) - Lab.b(c2);
+        return dl * dl + da * da + db * db;
+    }
+}
@@ -5,6 +5,12 @@ public class Main {
     final static int width = 940, height = 600;
 
     public static void main(String args[]) {
+        // images given on the command line are segmented in headless batch mode
+        if (args.length > 0) {
+            BatchSegmentation.main(args);
+            return;
+        }
+
         MainForm form = new MainForm(width, height);
     }
 
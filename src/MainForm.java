@@ -1,11 +1,11 @@
-import javax.imageio.ImageIO;
+import ImageUtility.RowBands;
+
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.awt.image.BufferedImage;
 import java.io.File;
 
 /**
@@ -22,6 +22,9 @@ public class MainForm extends JFrame implements Segmentation.Passive, ActionList
 
     private RawImage imageOrigianl;
 
+    // one engine for all opened images, so that its working buffers are reused
+    private final SegmentationEngine engine = new SegmentationEngine();
+
     private Segmentation segmentation;
     private Segmentation.Status segmentationStatus = Segmentation.Status.ORIGINAL;
 
@@ -29,6 +32,9 @@ public class MainForm extends JFrame implements Segmentation.Passive, ActionList
         super("Region Segmentation");
         setContentPane(rootPanel);
 
+        // a single image at a time, so the filters use all cores
+        engine.setBands(RowBands.shared());
+
         setMinimumSize(new Dimension(200, 200));
         setSize(w, h);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -51,24 +57,17 @@ public class MainForm extends JFrame implements Segmentation.Passive, ActionList
     }
 
     public void openImage() {
+        // the engine is shared, so the next image waits until the last one is segmented
+        if (segmentation != null && !segmentation.isDone()) {
+            return;
+        }
+
         JFileChooser chooser = new JFileChooser(new File(".").getAbsolutePath() + "/images");
         if( chooser.showOpenDialog(null) == JFileChooser.APPROVE_OPTION ) {
             File file = chooser.getSelectedFile();
 
             try {
-                /*
-                 * Load image logic.
-                 * ImageIO.read returns a BufferedImage of TYPE_BYTE_BINARY,
-                 * so here we convert the type into TYPE_INT_RGB for convenience.
-                 */
-                BufferedImage byteImage = ImageIO.read(file);
-                BufferedImage intImage = new BufferedImage(
-                        byteImage.getWidth(),
-                        byteImage.getHeight(),
-                        BufferedImage.TYPE_INT_RGB);
-                intImage.getGraphics().drawImage(byteImage, 0, 0, null);
-
-                imageOrigianl = new RawImage(intImage);
+                imageOrigianl = RawImage.read(file);
             } catch (Exception e) {
                 System.out.println("Load Image Error");
                 e.printStackTrace();
@@ -78,10 +77,10 @@ public class MainForm extends JFrame implements Segmentation.Passive, ActionList
             /*
              *  Start region segmentation
              */
-            segmentation = new Segmentation(this, imageOrigianl);
+            segmentation = new Segmentation(this, imageOrigianl, engine);
+            segmentationStatus = Segmentation.Status.ORIGINAL;
             segmentation.execute();
             showImageOnCanvas();
-            enableButton(Segmentation.Status.ORIGINAL);
         }
     }
 
@@ -93,7 +92,7 @@ public class MainForm extends JFrame implements Segmentation.Passive, ActionList
     }
 
     private void enableButton(Segmentation.Status status) {
-        Icon icon = new ImageIcon(segmentation.getImage(status).getScaledInstance(-1, 90, Image.SCALE_SMOOTH));
+        Icon icon = new ImageIcon(segmentation.getThumbnail(status));
         JButton target = button_original;
 
         switch (status) {
@@ -0,0 +1,133 @@
+import ImageUtility.FusedPreprocessor;
+import ImageUtility.IntPlane;
+import ImageUtility.RowBands;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Image whose RGB plane and filtered planes are kept outside of the Java heap.
+ *
+ * The counterpart of RawImage for images too large for int[] planes or for
+ * the heap. The planes belong to an arena which ends their lifetime, and
+ * the RGB plane may be mapped onto a file. The fused filters stream the RGB
+ * plane row by row into a bilateral Lab plane and an edge plane once for the
+ * whole image, and the tiles copy their rows of those into the engines.
+ */
+public class OffHeapImage {
+
+    // the largest image decoded at once; the raster of a larger one would not fit in an array
+    private static final long MAX_DECODED_PIXELS = Integer.MAX_VALUE / 4;
+
+    // rows decoded at once while reading a larger file
+    private static final int STRIP_ROWS = 256;
+
+    private final int width, height;
+    private final IntPlane.Arena arena;
+    private final IntPlane rgb;
+
+    // outputs of the filter stages, allocated by filter()
+    private IntPlane bilateralLab, edges;
+
+    /**
+     * @param rgb RGB plane allocated from 'arena'
+     * @param arena Arena which receives the derived planes
+     */
+    public OffHeapImage(IntPlane rgb, IntPlane.Arena arena) {
+        this.width = rgb.getWidth();
+        this.height = rgb.getHeight();
+        this.rgb = rgb;
+        this.arena = arena;
+    }
+
+    /**
+     * Decode an image file into a plane of an arena.
+     * The readers decode every row above a region to reach it, so an image is decoded once
+     * and its rows are copied into the plane; only an image whose raster would not fit in
+     * an array is decoded strip by strip, at a cost growing with the square of its height.
+     * @param mapTo File onto which the RGB plane is mapped, or null to allocate it in direct memory
+     * @throws IOException if the file cannot be decoded or mapped
+     */
+    public static OffHeapImage read(File file, IntPlane.Arena arena, File mapTo) throws IOException {
+        Dimension size = ImageLoader.readSize(file);
+        IntPlane rgb = mapTo == null ? arena.allocate(size.width, size.height)
+                : arena.map(mapTo, size.width, size.height);
+
+        if ((long) size.width * size.height <= MAX_DECODED_PIXELS) {
+            int[] data = ImageLoader.read(file).getRGBData();
+            for (int y = 0; y < size.height; y++) {
+                rgb.setRow(y, 0, size.width, data, y * size.width);
+            }
+            return new OffHeapImage(rgb, arena);
+        }
+
+        for (int y = 0; y < size.height; y += STRIP_ROWS) {
+            int rows = Math.min(STRIP_ROWS, size.height - y);
+            RawImage strip = ImageLoader.read(file, new Rectangle(0, y, size.width, rows));
+            int[] data = strip.getRGBData();
+            for (int i = 0; i < rows; i++) {
+                rgb.setRow(y + i, 0, size.width, data, i * size.width);
+            }
+        }
+        return new OffHeapImage(rgb, arena);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public IntPlane.Arena getArena() {
+        return arena;
+    }
+
+    public IntPlane getRGBPlane() {
+        return rgb;
+    }
+
+    /**
+     * Run the filter stages over the whole image, from the RGB plane into a bilateral Lab plane
+     * and an edge plane allocated in direct memory, unless they have run already
+     * @param preprocessor Filter stages of the EXACT bilateral filter
+     * @param bands Bands of rows filtered in parallel
+     */
+    public synchronized void filter(FusedPreprocessor preprocessor, RowBands bands) {
+        if (bilateralLab != null) {
+            return;
+        }
+        IntPlane bilateral = arena.allocate(width, height), edgeEnhanced = arena.allocate(width, height);
+        preprocessor.apply(rgb, bilateral, edgeEnhanced, bands);
+        bilateralLab = bilateral;
+        edges = edgeEnhanced;
+    }
+
+    /**
+     * @return The bilateral Lab plane, or null before filter()
+     */
+    public synchronized IntPlane getBilateralLabPlane() {
+        return bilateralLab;
+    }
+
+    /**
+     * @return The edge enhanced gray scale plane, or null before filter()
+     */
+    public synchronized IntPlane getEdgePlane() {
+        return edges;
+    }
+
+    /**
+     * Copy a rectangle into a RawImage on the heap
+     * @param region Rectangle within the image
+     */
+    public RawImage getTile(Rectangle region) {
+        int[] data = new int[region.width * region.height];
+        for (int y = 0; y < region.height; y++) {
+            rgb.getRow(region.y + y, region.x, region.width, data, y * region.width);
+        }
+        return new RawImage(region.width, region.height, data, null);
+    }
+}
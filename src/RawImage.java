@@ -1,7 +1,12 @@
-import static ImageUtility.ColorConverter.*;
+import ImageUtility.ColorTable;
+import ImageUtility.LabPlanes;
+import ImageUtility.RowBands;
+
 
 import java.awt.*;
 import java.awt.image.*;
+import java.io.File;
+import java.io.IOException;
 
 /**
  * Created by kou on 2014/05/03.
@@ -12,6 +17,13 @@ public class RawImage {
     private BufferedImage buffer;
     private int[] raw_lab, raw_rgb;
 
+    // Lab data is converted from RGB on the first request, since most images never need it
+    private boolean labPending = false;
+    private RowBands labBands = RowBands.SEQUENTIAL;
+
+    // planar Lab data of the last requested precision
+    private LabPlanes labPlanes;
+
     public RawImage(int width, int height) {
         this.width = width;
         this.height = height;
@@ -22,11 +34,49 @@ public class RawImage {
 
         if (rgb != null) {
             this.raw_rgb = rgb;
-            createLabData();
+            this.labPending = true;
+        }
+        else if (lab != null) {
+            this.raw_lab = lab;
+            createRGBData(RowBands.SEQUENTIAL);
+        }
+    }
+
+    /**
+     * Create RawImage whose missing color space is converted into a reused array
+     * @param rgb RGB data, or null to convert it from 'lab'
+     * @param lab Lab data, or null to convert it from 'rgb'
+     * @param buffer Array of at least width * height elements which receives the converted data,
+     *               or null to allocate a new one
+     */
+    public RawImage(int width, int height, int[] rgb, int[] lab, int[] buffer) {
+        this(width, height, rgb, lab, buffer, RowBands.SEQUENTIAL);
+    }
+
+    /**
+     * Create RawImage whose missing color space is converted band by band into a reused array
+     * @param rgb RGB data, or null to convert it from 'lab'
+     * @param lab Lab data, or null to convert it from 'rgb'
+     * @param buffer Array of at least width * height elements which receives the converted data,
+     *               or null to allocate a new one
+     * @param bands Bands of rows converted in parallel
+     */
+    public RawImage(int width, int height, int[] rgb, int[] lab, int[] buffer, RowBands bands) {
+        this(width, height);
+
+        if (buffer != null && buffer.length < width * height) {
+            buffer = null;
+        }
+        if (rgb != null) {
+            this.raw_rgb = rgb;
+            this.raw_lab = buffer;
+            this.labPending = true;
+            this.labBands = bands;
         }
         else if (lab != null) {
             this.raw_lab = lab;
-            createRGBData();
+            this.raw_rgb = buffer;
+            createRGBData(bands);
         }
     }
 
@@ -40,13 +90,60 @@ public class RawImage {
         this.height = image.getHeight();
 
         this.raw_rgb = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
-        createLabData();
+        this.labPending = true;
     }
 
-    public int[] getLabData() {
+    /**
+     * Load an image file through ImageLoader
+     * @param file Image file
+     * @return RawImage of the file
+     * @throws IOException if the file cannot be decoded
+     */
+    public static RawImage read(File file) throws IOException {
+        return ImageLoader.read(file);
+    }
+
+    /**
+     * Load a rectangle of an image file. Only the rectangle is kept in memory,
+     * so a tile of an image too large for the heap can be read.
+     * @param file Image file
+     * @param region Rectangle within the image
+     * @return RawImage of the rectangle
+     * @throws IOException if the file cannot be decoded
+     */
+    public static RawImage read(File file, Rectangle region) throws IOException {
+        return ImageLoader.read(file, region);
+    }
+
+    /**
+     * Read the size of an image file without decoding its pixels
+     * @throws IOException if the file cannot be decoded
+     */
+    public static Dimension readSize(File file) throws IOException {
+        return ImageLoader.readSize(file);
+    }
+
+    public synchronized int[] getLabData() {
+        if (labPending) {
+            createLabData(labBands);
+            labPending = false;
+        }
         return raw_lab;
     }
 
+    /**
+     * Lab data in separate L, a and b planes, converted from RGB on the first request.
+     * FLOAT planes are converted without rounding.
+     * @param precision Precision of the planes
+     * @param bands Bands of rows converted in parallel
+     */
+    public synchronized LabPlanes getLabPlanes(LabPlanes.Precision precision, RowBands bands) {
+        if (labPlanes == null || labPlanes.getPrecision() != precision) {
+            labPlanes = LabPlanes.fromRGB(raw_rgb, width, height, precision, bands);
+        }
+        return labPlanes;
+    }
+
     public int[] getRGBData() {
         return raw_rgb;
     }
@@ -66,28 +163,30 @@ public class RawImage {
         return buffer;
     }
 
-    private void createLabData() {
+    private void createLabData(RowBands bands) {
         if (raw_lab == null) {
             raw_lab = new int[width * height];
         }
 
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                raw_lab[j * width + i] = rgb_to_lab(raw_rgb[j * width + i]);
+        bands.run(height, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                ColorTable.rgb_to_lab(raw_rgb, raw_lab, from * width, to * width);
             }
-        }
+        });
     }
 
-    private void createRGBData() {
+    private void createRGBData(RowBands bands) {
         if (raw_rgb == null) {
             raw_rgb = new int[width * height];
         }
 
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                raw_rgb[j*width + i] = lab_to_rgb(raw_lab[j * width + i]);
+        bands.run(height, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                ColorTable.lab_to_rgb(raw_lab, raw_rgb, from * width, to * width);
             }
-        }
+        });
     }
 
     private void createBufferedImage() {
@@ -1,29 +1,32 @@
 import ImageUtility.ColorConverter;
+import ImageUtility.DistanceTransform;
+import ImageUtility.PixelSet;
+import ImageUtility.RowBands;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
-import java.util.HashSet;
-
-import static ImageUtility.Util.*;
+import java.util.Random;
 
 /**
  * Created by kou on 2014/05/07.
  */
 public class Region {
-    static int regionCounter = 0;
-    static int canvas_width = -1, canvas_height = -1;
+    protected int canvas_width, canvas_height;
 
-    private HashSet<Integer> pixels = new HashSet<Integer>();
+    private PixelSet pixels;
     protected int left, right, top, bottom;
     protected BufferedImage image;
     private int color;
 
-    public Region() throws IllegalStateException {
+    public Region(int canvas_width, int canvas_height) throws IllegalStateException {
         if (canvas_width < 0 || canvas_height < 0) {
             throw new IllegalStateException
                     ("The canvas size has not been set appropriately.");
         }
+        this.canvas_width = canvas_width;
+        this.canvas_height = canvas_height;
+        this.pixels = new PixelSet(canvas_width, canvas_height);
 
         // initialize position values
         this.left = canvas_width + 1;
@@ -39,33 +42,58 @@ public class Region {
         );
     }
 
-    public Region(HashSet<Integer> pixels) throws IllegalStateException {
-        this();
-
-        for (int id : pixels) {
-            Point p = XY(id);
-            addPixel(p.x, p.y);
-        }
+    public PixelSet getPixels() {
+        return this.pixels;
     }
 
-    public static void setCanvasSize(int w, int h) {
-        canvas_width = w;
-        canvas_height = h;
+    public int getPixelCount() {
+        return this.pixels.size();
     }
 
-    public HashSet<Integer> getPixels() {
-        return this.pixels;
+    /**
+     * Do a dilation operation by thresholding a distance transform of the original region.
+     * The result is the same as doDilationOperation, which is kept as the reference;
+     * validateDilation() compares the two.
+     * @param original Original region
+     * @param r Radius of a circle used for dilation operation
+     * @param squaredDistance Squared distances to the original region, given by DistanceTransform
+     * @return Dilated region
+     */
+    public static Region dilateByDistance(Region original, int r, int[] squaredDistance) {
+        Region region = new Region(original.canvas_width, original.canvas_height);
+        int w = original.canvas_width, rr = r * r;
+
+        int x_from = Math.max(original.left - r, 0);
+        int x_to   = Math.min(original.right + r, original.canvas_width - 1);
+        int y_from = Math.max(original.top - r, 0);
+        int y_to   = Math.min(original.bottom + r, original.canvas_height - 1);
+        for (int y = y_from; y <= y_to; y++) {
+            int row = y * w;
+            for (int x = x_from; x <= x_to; x++) {
+                if (squaredDistance[row + x] > rr) {
+                    continue;
+                }
+                // add the run of covered pixels at once
+                int left = x;
+                while (x + 1 <= x_to && squaredDistance[row + x + 1] <= rr) {
+                    x++;
+                }
+                region.addSpan(y, left, x);
+            }
+        }
+
+        return region;
     }
 
     /**
      * do a dilation operation
      * @param original Original region
      * @param r Radius of a circle used for dilation operation
-     * @param search HashSet of search area
+     * @param search Pixels of search area, or null (empty) to search around the original region
      * @return Dilated region
      */
-    public static Region doDilationOperation(Region original, int r, HashSet<Integer> search) {
-        Region region = new Region();
+    public static Region doDilationOperation(Region original, int r, PixelSet search) {
+        Region region = new Region(original.canvas_width, original.canvas_height);
 
         /*
          * Create a relative distance list of a radius 'r' circle
@@ -80,44 +108,97 @@ public class Region {
         }
 
         /*
-         * Set search area if 'search' is empty
+         * Dilation operation
          */
         if (search == null || search.isEmpty()) {
-            search = new HashSet<Integer>();
-
+            // search around the original region
             int x_from = Math.max(original.left - r, 0);
-            int x_to   = Math.min(original.right + r, canvas_width - 1);
+            int x_to   = Math.min(original.right + r, original.canvas_width - 1);
             int y_from = Math.max(original.top - r, 0);
-            int y_to   = Math.min(original.bottom + r, canvas_height - 1);
-            for (int x = x_from; x <= x_to; x++) {
-                for (int y = y_from; y <= y_to; y++) {
-                    search.add(ID(x, y));
+            int y_to   = Math.min(original.bottom + r, original.canvas_height - 1);
+            for (int y = y_from; y <= y_to; y++) {
+                for (int x = x_from; x <= x_to; x++) {
+                    if (isCovered(original, rdlist, x, y)) {
+                        region.addPixel(x, y);
+                    }
+                }
+            }
+        }
+        else {
+            int w = search.getCanvasWidth();
+            for (int i = search.nextPixel(0); i >= 0; i = search.nextPixel(i + 1)) {
+                int x = i % w, y = i / w;
+                if (isCovered(original, rdlist, x, y)) {
+                    region.addPixel(x, y);
                 }
             }
         }
 
-        /*
-         * Dilation operation
-         */
-        for (int id : search) {
-            Point pos = XY(id);
-            boolean flag = false;
-
-            // check if there is a region pixel around (x, y)
-            for(Point p : rdlist) {
-                if (original.contains(pos.x + p.x, pos.y + p.y )) {
-                    flag = true;
-                    break;
+        return region;
+    }
+
+    /**
+     * Compare dilateByDistance with doDilationOperation on random regions of random canvases
+     * @param trials The number of regions
+     * @param seed Seed of the random regions, so that a failure can be repeated
+     * @return The number of regions whose dilations differ
+     */
+    public static int validateDilation(int trials, long seed) {
+        Random random = new Random(seed);
+        int differ = 0;
+        for (int trial = 0; trial < trials; trial++) {
+            int w = 1 + random.nextInt(64), h = 1 + random.nextInt(64), r = 1 + random.nextInt(8);
+
+            // scattered pixels and a few spans, which may touch the edges of the canvas
+            Region original = new Region(w, h);
+            double density = random.nextDouble() * 0.05;
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    if (random.nextDouble() < density) {
+                        original.addPixel(x, y);
+                    }
                 }
             }
+            for (int k = random.nextInt(4); k > 0; k--) {
+                int left = random.nextInt(w);
+                original.addSpan(random.nextInt(h), left, left + random.nextInt(w - left));
+            }
+            if (original.getPixelCount() == 0) {
+                original.addPixel(random.nextInt(w), random.nextInt(h));
+            }
 
-            // point (x, y) is added by dilation operation
-            if (flag) {
-                region.addPixel(pos.x, pos.y);
+            int[] squaredDistance = DistanceTransform.apply(original.getPixels(), null, RowBands.SEQUENTIAL);
+            PixelSet expected = doDilationOperation(original, r, null).getPixels();
+            PixelSet actual = dilateByDistance(original, r, squaredDistance).getPixels();
+            if (!samePixels(expected, actual)) {
+                differ++;
             }
         }
+        return differ;
+    }
 
-        return region;
+    private static boolean samePixels(PixelSet a, PixelSet b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = a.nextPixel(0); i >= 0; i = a.nextPixel(i + 1)) {
+            if (b.nextPixel(i) != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if there is a region pixel around (x, y)
+     */
+    private static boolean isCovered(Region original, ArrayList<Point> rdlist, int x, int y) {
+        for(Point p : rdlist) {
+            if (original.contains(x + p.x, y + p.y)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public void addPixel(int x, int y) {
@@ -128,15 +209,34 @@ public class Region {
         if (y > this.bottom) this.bottom = y;
 
         // add pixel
-        this.pixels.add(ID(x, y));
+        this.pixels.add(x, y);
+    }
+
+    /**
+     * Add pixels from (left, y) to (right, y), both inclusive
+     */
+    public void addSpan(int y, int left, int right) {
+        // set position values
+        if (left < this.left) this.left = left;
+        if (right > this.right) this.right = right;
+        if (y < this.top) this.top = y;
+        if (y > this.bottom) this.bottom = y;
+
+        // add pixels
+        this.pixels.addSpan(y, left, right);
     }
 
     public boolean contains(int x, int y) {
-        return pixels.contains(ID(x, y));
+        return pixels.contains(x, y);
     }
 
     public void setColor(int r, int g, int b) {
         this.color = ColorConverter.RGB.rgb(r, g, b);
+        this.image = null;
+    }
+
+    public int getColor() {
+        return color;
     }
 
     public void drawImage(Graphics g) {
@@ -145,9 +245,8 @@ public class Region {
                     right - left + 1,
                     bottom - top + 1,
                     BufferedImage.TYPE_INT_ARGB);
-            for (int id : pixels) {
-                Point p = XY(id);
-                image.setRGB(p.x - left, p.y - top, this.color);
+            for (int i = pixels.nextPixel(0); i >= 0; i = pixels.nextPixel(i + 1)) {
+                image.setRGB(i % canvas_width - left, i / canvas_width - top, this.color);
             }
         }
 
@@ -1,15 +1,24 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Created by kou on 2014/05/12.
  */
 public class RegionIdentity {
 
-    private static int __counter = 0;
+    // shared by every segmentation, which may run concurrently in batch mode
+    private static AtomicInteger __counter = new AtomicInteger();
     private int id;
     private Region region;
 
     public RegionIdentity() {
-        __counter ++;
-        this.id = __counter;
+        this.id = __counter.incrementAndGet();
+    }
+
+    /**
+     * @param id An id given by the caller, e.g. a label of a UnionFind
+     */
+    public RegionIdentity(int id) {
+        this.id = id;
     }
 
     public void setID(int id) {
@@ -0,0 +1,1016 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.*;
+
+import ImageUtility.BilateralFilter;
+import ImageUtility.ColorConverter.*;
+import ImageUtility.ConnectedComponents;
+import ImageUtility.DistanceTransform;
+import ImageUtility.Filter;
+import ImageUtility.FusedPreprocessor;
+import ImageUtility.IntPlane;
+import ImageUtility.LabPlanes;
+import ImageUtility.LabelImage;
+import ImageUtility.PixelSet;
+import ImageUtility.RegionAdjacencyGraph;
+import ImageUtility.RegionMerger;
+import ImageUtility.RegionStatistics;
+import ImageUtility.RowBands;
+import ImageUtility.ScanlineFill;
+import ImageUtility.UnionFind;
+import ImageUtility.WavefrontFill;
+
+/**
+ * Region segmentation pipeline independent of Swing.
+ *
+ * The engine keeps its width x height working buffers (filter planes,
+ * label table, pixel sets and flood fill stack) between calls and grows them
+ * only when a larger image arrives, so one engine should be reused for
+ * a series of images. An engine is not thread safe, and the images and
+ * regions of a result are only valid until the next call of segment().
+ *
+ * The filter stages are fused into one streaming pass which produces only
+ * the bilateral Lab plane and the border mask. The images of the
+ * intermediate stages are computed when they are asked for. Optionally the
+ * filters and the color walls of the region growing read separate L, a and b
+ * planes, of 8 bits or of floats which are not rounded between the stages.
+ *
+ * In the coarse to fine mode the image is first segmented at half resolution
+ * by a child engine, recursively. The coarse labels are upsampled, and only a
+ * band of pixels around the coarse region boundaries is filtered, bordered and
+ * grown again; the pixels outside of the band keep their coarse regions.
+ *
+ * A tile of an image whose filter stages have run over the whole image in
+ * off-heap planes is segmented from its rows copied out of the planes.
+ *
+ * Optionally the border pixels and the pixels left by the region growing are
+ * finally given to the nearest regions, so that the regions cover the image.
+ *
+ * An over-segmented result can be coarsened afterwards by merging adjacent
+ * regions of similar colors, without running the pipeline again.
+ */
+public class SegmentationEngine {
+
+    // label of the pixels which belong to no region
+    public static final int UNASSIGNED = -1;
+
+    // edge enhanced values greater than this are borders
+    private static final int BORDER_THRESHOLD = 120;
+
+    // the minimum width and height of an image which is segmented coarse to fine
+    private static final int MIN_PYRAMID_SIZE = 64;
+
+    // pixels within this distance from the coarse region boundaries are segmented again
+    private static final int BAND_MARGIN = 8;
+
+    // noise reduction filter of the first stage, and the fused filter stages using it
+    private BilateralFilter bilateralFilter = new BilateralFilter();
+    private FusedPreprocessor preprocessor = new FusedPreprocessor(bilateralFilter, BORDER_THRESHOLD);
+
+    // bands of rows on which the filter stages run in parallel
+    private RowBands bands = RowBands.SEQUENTIAL;
+
+    // precision of the Lab planes, or null to filter packed Lab data
+    private LabPlanes.Precision labPrecision = null;
+
+    // whether the thresholded borders are thinned before the regions are grown
+    private boolean thinBorders = false;
+
+    // whether the border and leftover pixels are assigned to the regions at the end
+    private boolean fillBorders = false;
+
+    // the number of half resolution levels segmented first, and the engine of the next coarser level
+    private int pyramidLevels = 0;
+    private SegmentationEngine coarse;
+
+    /*
+     * Pooled working buffers
+     */
+    private int capacity = 0;
+    private int[] bilateralLab;
+    private byte[] borderMask;
+
+    // bilateral Lab planes, sized to the last image
+    private LabPlanes bilateralPlanes;
+
+    // squared distances to the border
+    private int[] borderDistance;
+
+    // labels of the seed components of a radius
+    private int[] seedLabels;
+
+    // The pixels which have not been assigned to any regions, and the pixels for seeds
+    private PixelSet allPixel, remain;
+
+    // the pixels segmented again in the coarse to fine mode
+    private PixelSet band;
+
+    private ScanlineFill scanlineFill;
+
+    /*
+     * Result of the last segmentation
+     */
+    private int width, height;
+
+    // the pixels segmented at this and the coarser levels
+    private long processedPixels;
+
+    private RawImage imageOriginal;
+    private RawImage imageBilateral;
+    private RawImage imageEdgeEnhanced;
+
+    // palette indexed views of the border mask and the label map, built on the first request
+    private LabelImage thresholdLabels, segmentedLabels;
+    private BufferedImage imageThreshold, imageSegmented;
+
+    // whether the label map holds the regions of the last segmentation
+    private volatile boolean segmented = false;
+
+    private Border border;
+
+    // Row-major label of each pixel; a seed label while growing, and the index of the region at the end
+    private int[] labelMap;
+
+    // Regions and their statistics indexed by the final labels
+    private ArrayList<Region> regions = new ArrayList<Region>();
+    private RegionStatistics statistics = new RegionStatistics();
+
+    // Region identities of the seeds; the id of each identity is its label in 'sameRegions'
+    private ArrayList<RegionIdentity> seedIdentities = new ArrayList<RegionIdentity>();
+
+    // Seeds which have grown into each other belong to the same region
+    private UnionFind sameRegions = new UnionFind();
+
+    // Statistics of the seeds indexed by seed label; merged into the representative labels at the end
+    private RegionStatistics seedStatistics = new RegionStatistics();
+
+    // The coarse region in the set of each representative seed label, or UNASSIGNED
+    private int[] coarseOf = new int[16];
+
+    /**
+     * Make the working buffers large enough for a w x h image
+     */
+    private void ensureCapacity(int w, int h) {
+        int size = w * h;
+        if (size > capacity) {
+            capacity = size;
+            bilateralLab = new int[size];
+            borderMask = new byte[size];
+            borderDistance = new int[size];
+            seedLabels = new int[size];
+            labelMap = new int[size];
+        }
+        Arrays.fill(labelMap, 0, size, UNASSIGNED);
+
+        if (allPixel == null || allPixel.getCanvasWidth() != w || allPixel.getCanvasHeight() != h) {
+            allPixel = new PixelSet(w, h);
+            remain = new PixelSet(w, h);
+            band = new PixelSet(w, h);
+        }
+
+        if (scanlineFill == null) {
+            scanlineFill = new ScanlineFill(w, h);
+        }
+        else {
+            scanlineFill.setCanvasSize(w, h);
+        }
+    }
+
+    public BilateralFilter getBilateralFilter() {
+        return bilateralFilter;
+    }
+
+    public void setBilateralFilter(BilateralFilter bilateralFilter) {
+        this.bilateralFilter = bilateralFilter;
+        this.preprocessor = new FusedPreprocessor(bilateralFilter, BORDER_THRESHOLD);
+    }
+
+    /**
+     * @return The fused filter stages, which may also run over the planes of an OffHeapImage
+     */
+    public FusedPreprocessor getPreprocessor() {
+        return preprocessor;
+    }
+
+    public RowBands getBands() {
+        return bands;
+    }
+
+    /**
+     * @param bands Bands of rows on which the filter stages run, e.g. RowBands.shared()
+     */
+    public void setBands(RowBands bands) {
+        this.bands = bands;
+    }
+
+    public LabPlanes.Precision getLabPrecision() {
+        return labPrecision;
+    }
+
+    /**
+     * @param precision Precision of the Lab planes which the filters and the color walls read,
+     *                  or null to read packed Lab data. Ignored by the GRID bilateral filter.
+     */
+    public void setLabPrecision(LabPlanes.Precision precision) {
+        this.labPrecision = precision;
+    }
+
+    public boolean isThinBorders() {
+        return thinBorders;
+    }
+
+    /**
+     * @param thinBorders Whether the thresholded borders are thinned onto the color edges,
+     *                    which leaves fewer border pixels to be dilated and assigned
+     */
+    public void setThinBorders(boolean thinBorders) {
+        this.thinBorders = thinBorders;
+    }
+
+    public boolean isFillBorders() {
+        return fillBorders;
+    }
+
+    /**
+     * @param fillBorders Whether the border pixels and the pixels left by the region growing are
+     *                    assigned to the nearest regions, so that the label map has no borders
+     */
+    public void setFillBorders(boolean fillBorders) {
+        this.fillBorders = fillBorders;
+    }
+
+    public int getPyramidLevels() {
+        return pyramidLevels;
+    }
+
+    /**
+     * @param levels The number of half resolution levels segmented before the full resolution,
+     *               or 0 to segment the whole image at full resolution
+     */
+    public void setPyramidLevels(int levels) {
+        this.pyramidLevels = levels;
+        if (levels == 0) {
+            coarse = null;
+        }
+    }
+
+    /**
+     * @return The number of pixels filtered and grown by the last segmentation, summed up over the levels.
+     *         This is width * height unless the image was segmented coarse to fine.
+     */
+    public long getProcessedPixels() {
+        return processedPixels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Border getBorder() {
+        return border;
+    }
+
+    public ArrayList<Region> getRegions() {
+        return regions;
+    }
+
+    /**
+     * @return Statistics of the regions indexed by their labels
+     */
+    public RegionStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * The canonical result of the segmentation.
+     * @return Row-major labels of the pixels: the index of the region in getRegions(), or UNASSIGNED on
+     *         borders. The array may be longer than width * height, and is reused by the next segmentation.
+     */
+    public int[] getLabelMap() {
+        return labelMap;
+    }
+
+    /**
+     * The bilateral filtered image, converted into RGB on the first request
+     */
+    private synchronized RawImage getBilateralImage() {
+        if (imageBilateral == null) {
+            imageBilateral = new RawImage(width, height, null, bilateralLab, null, bands);
+        }
+        return imageBilateral;
+    }
+
+    /**
+     * The edge enhanced image, filtered by the staged filters on the first request
+     */
+    private synchronized RawImage getEdgeEnhancedImage() {
+        if (imageEdgeEnhanced == null) {
+            RawImage bilateral = getBilateralImage();
+            int[] logData = Filter.LoGFilter(bilateral.getRGBData(), width, height, null, bands);
+            imageEdgeEnhanced = new RawImage(width, height,
+                    Filter.edgeEnhanceFilter(bilateralLab, logData, width, height, null, bands), null, null, bands);
+        }
+        return imageEdgeEnhanced;
+    }
+
+    /**
+     * The border mask colored by the border color
+     */
+    private synchronized BufferedImage getThresholdImage() {
+        if (imageThreshold == null) {
+            thresholdLabels = new LabelImage(borderMask, width, height);
+            imageThreshold = thresholdLabels.getImage(new int[]{0, border.getColor()});
+        }
+        return imageThreshold;
+    }
+
+    /**
+     * The label map colored by the region colors
+     */
+    private synchronized BufferedImage getSegmentedImage() {
+        if (imageSegmented == null) {
+            if (segmentedLabels == null) {
+                segmentedLabels = new LabelImage(labelMap, width, height, regions.size());
+            }
+            int[] palette = new int[regions.size() + 1];
+            palette[0] = border.getColor();
+            for (int i = 0; i < regions.size(); i++) {
+                palette[i + 1] = regions.get(i).getColor();
+            }
+            imageSegmented = segmentedLabels.getImage(palette);
+        }
+        return imageSegmented;
+    }
+
+    /**
+     * Give the regions new random colors.
+     * The segmented image is recolored by swapping its palette.
+     */
+    public synchronized void recolor() {
+        for (Region r : regions) {
+            r.setColor((int) (Math.random() * 255), (int) (Math.random() * 255), (int) (Math.random() * 255));
+        }
+        imageSegmented = null;
+    }
+
+    /**
+     * @return The image of a stage. THRESHOLD and SEGMENTED are cached, and share their pixels
+     *         until the next segmentation.
+     */
+    public BufferedImage getImage(Segmentation.Status st) {
+        switch (st) {
+            case ORIGINAL:
+                return imageOriginal.getImage();
+            case BILATERAL:
+                return getBilateralImage().getImage();
+            case EDGEENHANCED:
+                return getEdgeEnhancedImage().getImage();
+            case THRESHOLD:
+                return getThresholdImage();
+            case SEGMENTED:
+                // the regions are not ready while segmenting
+                return segmented ? getSegmentedImage() : getThresholdImage();
+        }
+
+        return null;
+    }
+
+    /**
+     * Create a border region
+     * @param mask Border mask of the image; 1 on borders
+     * @return A border region
+     */
+    private Border createBorderRegion(byte[] mask) {
+        Border region = new Border(width, height);
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                if (mask[row + x] == 0) {
+                    continue;
+                }
+                // add the run of border pixels at once
+                int left = x;
+                while (x + 1 < width && mask[row + x + 1] != 0) {
+                    x++;
+                }
+                region.addSpan(y, left, x);
+            }
+        }
+        return region;
+    }
+
+    /**
+     * Make a seed label in a set of its own, which holds no coarse region
+     */
+    private int makeSeed() {
+        int label = sameRegions.makeSet();
+        if (label == coarseOf.length) {
+            coarseOf = Arrays.copyOf(coarseOf, label * 2);
+        }
+        coarseOf[label] = UNASSIGNED;
+        return label;
+    }
+
+    /**
+     * Merge the sets of two seeds which have grown into each other.
+     * Two sets holding different coarse regions are not merged: the coarse levels have
+     * already separated them, and a seed of the band only meets them as walls.
+     */
+    private void join(int a, int b) {
+        int ra = sameRegions.find(a), rb = sameRegions.find(b);
+        if (ra == rb || (coarseOf[ra] != UNASSIGNED && coarseOf[rb] != UNASSIGNED)) {
+            return;
+        }
+        int coarseRegion = coarseOf[ra] != UNASSIGNED ? coarseOf[ra] : coarseOf[rb];
+        coarseOf[sameRegions.union(ra, rb)] = coarseRegion;
+    }
+
+    /**
+     * @param planes Bilateral Lab planes read by the color walls, or null to read the packed data
+     */
+    private void growSeedRegions(final ArrayList<Region> seeds, final PixelSet allPixel, final LabPlanes planes) {
+
+        for (Region seed : seeds) {
+            /*
+             * Continue connecting new regions until connected regions become empty.
+             */
+            final Region currentSeed = seed;
+            int origin = currentSeed.getPixels().nextPixel(0);
+            int origin_x = origin % width, origin_y = origin / width;
+            final int label = labelMap[origin];
+            final RegionIdentity currentSeedIdentity = seedIdentities.get(label);
+
+            // The average color of the current seed region, which has not grown yet.
+            final int[] labData = bilateralLab;
+            final int averageColor = seedStatistics.getMeanColor(label);
+
+            /*
+             * Grow the current region.
+             * If the region reaches other regions, merge them with the current region.
+             */
+            scanlineFill.execute(origin_x, origin_y, new ScanlineFill.Target() {
+                @Override
+                public boolean isWall(int x, int y) {
+                    boolean wall = false;
+                    boolean isBorder = border.contains(x, y);
+                    boolean colorEdge = planes == null ? Lab.distance(labData[y * width + x], averageColor) >= 8
+                            : planes.distanceSquared(y * width + x, averageColor) >= 8 * 8;
+
+                    int ci = labelMap[y * width + x];
+
+                    // within seed region
+                    if (currentSeed.contains(x, y)) {
+                        wall = false;
+                    }
+                    // reached to a border
+                    else if (isBorder || colorEdge) {
+                        if (isBorder) {
+                            border.addNeighborRegion(x, y, currentSeedIdentity);
+                            seedStatistics.addBorderContact(label);
+                        }
+                        wall = true;
+                    }
+                    // reached to already assigned region
+                    else if (ci != UNASSIGNED && ci != label) {
+                        join(label, ci);
+                        wall = true;
+                    }
+
+                    return wall;
+                }
+
+                @Override
+                public void fillSpan(int y, int left, int right) {
+                    // assign the label to the grown pixels, and remove them from allPixel
+                    int row = y * width;
+                    int run = -1;
+                    for (int x = left; x <= right + 1; x++) {
+                        if (x <= right && labelMap[row + x] != label) {
+                            labelMap[row + x] = label;
+                            if (run < 0) run = x;
+                        }
+                        else if (run >= 0) {
+                            seedStatistics.addSpan(label, y, run, x - 1, labData, width);
+                            run = -1;
+                        }
+                    }
+                    allPixel.removeSpan(y, left, right);
+                }
+            });
+        }
+    }
+
+    /**
+     * Segment an image.
+     * @param image The original image
+     * @param passive A passive instance which receives the progress, or null
+     */
+    public void segment(RawImage image, Segmentation.Passive passive) {
+        segmentImage(image, null, null, null, passive);
+    }
+
+    /**
+     * Segment a rectangle of an image whose filter stages have run over the whole image,
+     * such as a tile of an OffHeapImage. The rows of the rectangle are copied from the
+     * filtered planes into the working buffers instead of being filtered again; the coarse
+     * to fine mode and the Lab planes are not used.
+     * @param image The original pixels of the rectangle
+     * @param bilateralPlane Bilateral Lab data of the whole image
+     * @param edgePlane Edge enhanced gray scale of the whole image, given by FusedPreprocessor
+     * @param tile The rectangle within the planes
+     * @param passive A passive instance which receives the progress, or null
+     */
+    public void segment(RawImage image, IntPlane bilateralPlane, IntPlane edgePlane, Rectangle tile,
+                        Segmentation.Passive passive) {
+        if (bilateralPlane == null || edgePlane == null
+                || tile.width != image.getWidth() || tile.height != image.getHeight()) {
+            throw new IllegalArgumentException("The filtered planes must cover a rectangle of the image size");
+        }
+        segmentImage(image, bilateralPlane, edgePlane, tile, passive);
+    }
+
+    private void segmentImage(RawImage image, IntPlane bilateralPlane, IntPlane edgePlane, Rectangle tile,
+                              Segmentation.Passive passive) {
+        // drop the images of the last segmentation, whose buffers are reused
+        synchronized (this) {
+            segmented = false;
+            imageBilateral = null;
+            imageEdgeEnhanced = null;
+            imageThreshold = null;
+            imageSegmented = null;
+            thresholdLabels = null;
+            segmentedLabels = null;
+        }
+        this.imageOriginal = image;
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.regions = new ArrayList<Region>();
+        this.seedIdentities.clear();
+        this.sameRegions.clear();
+        this.statistics.clear();
+        this.seedStatistics.clear();
+        ensureCapacity(width, height);
+
+        /*
+         * Segment the image at half resolution first, and take its regions outside of the band
+         */
+        PixelSet active = null;
+        if (bilateralPlane == null && pyramidLevels > 0 && width >= MIN_PYRAMID_SIZE && height >= MIN_PYRAMID_SIZE) {
+            active = segmentCoarse(image);
+        }
+        else {
+            processedPixels = (long) width * height;
+        }
+
+        /*
+         * Apply a bilateral filter to reduce the noises, enhance the edges,
+         * and threshold the edges into a border mask in one pass.
+         * The images of the stages are created when a viewer asks for them.
+         */
+        LabPlanes planes = null;
+        if (bilateralPlane != null) {
+            copyFiltered(bilateralPlane, edgePlane, tile);
+        }
+        else if (labPrecision != null && bilateralFilter.getMode() == BilateralFilter.Mode.EXACT) {
+            if (bilateralPlanes == null || bilateralPlanes.getPrecision() != labPrecision
+                    || bilateralPlanes.getWidth() != width || bilateralPlanes.getHeight() != height) {
+                bilateralPlanes = new LabPlanes(width, height, labPrecision);
+            }
+            planes = bilateralPlanes;
+            preprocessor.apply(image.getLabPlanes(labPrecision, bands), planes, borderMask, active, bands);
+            // the statistics and the viewers read the packed colors
+            planes.toPacked(bilateralLab, bands);
+        }
+        else {
+            preprocessor.apply(image.getRGBData(), null, width, height, bilateralLab, borderMask, active, bands);
+        }
+        notify(passive, Segmentation.Status.BILATERAL);
+        notify(passive, Segmentation.Status.EDGEENHANCED);
+
+        /*
+         * Create a border region from the mask.
+         */
+        border = createBorderRegion(borderMask);
+        if (thinBorders) {
+            border.doThinning(bilateralLab, bands);
+        }
+        notify(passive, Segmentation.Status.THRESHOLD);
+
+        /*
+         * Region segmentation.
+         */
+        if (active == null) {
+            allPixel.fill();
+        }
+        else {
+            addCoarseRegions(active);
+            allPixel.clear();
+            allPixel.addAll(active);
+        }
+        allPixel.removeAll(border.getPixels());
+
+        // One distance transform gives the dilated borders of every radius
+        DistanceTransform.apply(border.getPixels(), borderDistance, bands);
+
+        // Iterate loop while decreasing the radius of the trapped ball.
+        for (int ballR = 8; ballR >= 1; ballR--) {
+            remain.clear();
+            remain.addAll(allPixel);
+
+            /*
+             * Remove the pixels covered by the border dilated by the ball, as Region.dilateByDistance
+             * would give, reading only the distances of 'remain' pixels
+             */
+            remain.removeAtMost(borderDistance, ballR * ballR);
+
+            /*
+             * Extract the connected components of 'remain' as seed regions
+             */
+            int seedCount = ConnectedComponents.label(remain, seedLabels, bands);
+            ArrayList<Region> seeds = new ArrayList<Region>(seedCount);
+            RegionIdentity[] seedIdentity = new RegionIdentity[seedCount];
+            for (int k = 0; k < seedCount; k++) {
+                // Region identity for a new seed
+                seedIdentity[k] = new RegionIdentity(makeSeed());
+                seedIdentities.add(seedIdentity[k]);
+                seeds.add(new Region(width, height));
+            }
+            seedStatistics.ensureLabels(sameRegions.size());
+            // a run of 'remain' belongs to one seed; add it at once, and label it
+            for (int i = remain.nextPixel(0), end; i >= 0; i = remain.nextPixel(end)) {
+                end = remain.runEnd(i);
+                int k = seedLabels[i], y = i / width, left = i % width, right = left + end - i - 1;
+                int label = seedIdentity[k].getID();
+                seeds.get(k).addSpan(y, left, right);
+                seedStatistics.addSpan(label, y, left, right, bilateralLab, width);
+                Arrays.fill(labelMap, i, end, label);
+            }
+
+            /*
+             * Grow all seed regions, and connect neighbor regions.
+             * Append regions to 'regions' and remove pixels from all pixel.
+             */
+            growSeedRegions(seeds, allPixel, planes);
+        }
+
+        /*
+         * Regard the remaining small pixels as borders, unless they are filled at the end
+         */
+        if (!fillBorders) {
+            for (int index = allPixel.nextPixel(0); index >= 0; index = allPixel.nextPixel(index + 1)) {
+                int x = index % width, y = index / width;
+                border.addPixel(x, y);
+                for (int i = -1; i <= 1; i++) {
+                    for (int j = -1; j <= 1; j++) {
+                        int xx = x+i, yy = y+j;
+                        if ( xx >= 0 && xx < width && yy >= 0 && yy < height) {
+                            int label = labelMap[yy * width + xx];
+                            if (label != UNASSIGNED) {
+                                border.addNeighborRegion(x, y, seedIdentities.get(label));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        /*
+         * Merge the statistics of the merged seeds into their representatives
+         */
+        int seedCount = seedIdentities.size();
+        for (int i = 0; i < seedCount; i++) {
+            seedStatistics.merge(sameRegions.find(i), i);
+        }
+
+        /*
+         * Relabel the pixels by the regions, numbered in the raster order of their first pixels,
+         * and add the runs of each row to the regions
+         */
+        int[] regionOf = new int[seedCount];
+        Arrays.fill(regionOf, UNASSIGNED);
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int label = labelMap[row + x];
+                if (label == UNASSIGNED) {
+                    continue;
+                }
+                int root = sameRegions.find(label);
+                if (regionOf[root] == UNASSIGNED) {
+                    regionOf[root] = regions.size();
+                    regions.add(new Region(width, height));
+                    statistics.ensureLabels(regions.size());
+                    statistics.copy(regionOf[root], seedStatistics, root);
+                }
+                labelMap[row + x] = regionOf[root];
+            }
+        }
+
+        if (fillBorders) {
+            fillUnassigned();
+        }
+
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int label = labelMap[row + x];
+                if (label == UNASSIGNED) {
+                    continue;
+                }
+                int left = x;
+                while (x + 1 < width && labelMap[row + x + 1] == label) {
+                    x++;
+                }
+                regions.get(label).addSpan(y, left, x);
+            }
+        }
+
+        // Region identities refer to the regions; the seed of label i is seedIdentities[i]
+        for (int i = 0; i < seedCount; i++) {
+            int region = regionOf[sameRegions.find(i)];
+            if (region == UNASSIGNED) {
+                // a coarse region lying within the band, whose pixels have gone to other regions
+                seedIdentities.get(i).setID(UNASSIGNED);
+                continue;
+            }
+            seedIdentities.get(i).setID(region);
+            seedIdentities.get(i).assignRegion(regions.get(region));
+        }
+
+        segmented = true;
+        notify(passive, Segmentation.Status.SEGMENTED);
+    }
+
+    /**
+     * @return The adjacency graph of the regions of the last segmentation
+     */
+    public RegionAdjacencyGraph getAdjacencyGraph() {
+        return new RegionAdjacencyGraph(labelMap, width, height, regions.size(), statistics);
+    }
+
+    /**
+     * Merge adjacent regions of the last segmentation, the closest mean colors first,
+     * until 'targetCount' regions are left or the closest pair is farther apart than 'maxDistance'.
+     * The label map, the regions, their statistics and identities are replaced by the merged ones.
+     * @param targetCount The number of regions to be left, or 0 to be limited only by the distance
+     * @param maxDistance The largest Lab distance of the mean colors of merged regions
+     * @return The number of regions left
+     */
+    public int mergeRegions(int targetCount, double maxDistance) {
+        if (!segmented) {
+            throw new IllegalStateException("No segmentation to be merged");
+        }
+        RegionMerger merger = new RegionMerger(getAdjacencyGraph());
+        if (merger.merge(targetCount, maxDistance) == regions.size()) {
+            return regions.size();
+        }
+        int[] mergedLabel = merger.getLabels();
+
+        // renumber the merged regions in the raster order of their first pixels as segment() does
+        int[] regionOf = new int[regions.size()];
+        Arrays.fill(regionOf, UNASSIGNED);
+        ArrayList<Region> merged = new ArrayList<Region>();
+        RegionStatistics mergedStatistics = new RegionStatistics();
+        int[] first = new int[merger.getRegionCount()];
+        Arrays.fill(first, UNASSIGNED);
+        for (int i = 0; i < width * height; i++) {
+            int label = labelMap[i];
+            if (label == UNASSIGNED) {
+                continue;
+            }
+            int m = mergedLabel[label];
+            if (first[m] == UNASSIGNED) {
+                first[m] = merged.size();
+                merged.add(new Region(width, height));
+                mergedStatistics.ensureLabels(merged.size());
+            }
+            if (regionOf[label] == UNASSIGNED) {
+                regionOf[label] = first[m];
+                mergedStatistics.add(first[m], statistics, label);
+            }
+            labelMap[i] = regionOf[label];
+        }
+
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int label = labelMap[row + x];
+                if (label == UNASSIGNED) {
+                    continue;
+                }
+                int left = x;
+                while (x + 1 < width && labelMap[row + x + 1] == label) {
+                    x++;
+                }
+                merged.get(label).addSpan(y, left, x);
+            }
+        }
+
+        // the identities refer to the regions by their indices
+        for (RegionIdentity identity : seedIdentities) {
+            if (identity.getID() != UNASSIGNED) {
+                identity.setID(regionOf[identity.getID()]);
+                identity.assignRegion(merged.get(identity.getID()));
+            }
+        }
+
+        synchronized (this) {
+            regions = merged;
+            statistics = mergedStatistics;
+            imageSegmented = null;
+            segmentedLabels = null;
+        }
+        return regions.size();
+    }
+
+    /**
+     * Copy the bilateral Lab data of a rectangle of filtered planes, and threshold its edges into the border mask
+     */
+    private void copyFiltered(final IntPlane bilateralPlane, final IntPlane edgePlane, final Rectangle tile) {
+        bands.run(height, new RowBands.Task() {
+            @Override
+            public void run(int from, int to) {
+                int[] edgeRow = new int[width];
+                for (int y = from; y < to; y++) {
+                    int row = y * width;
+                    bilateralPlane.getRow(tile.y + y, tile.x, width, bilateralLab, row);
+                    edgePlane.getRow(tile.y + y, tile.x, width, edgeRow, 0);
+                    for (int x = 0; x < width; x++) {
+                        borderMask[row + x] = (byte) (RGB.r(edgeRow[x]) > BORDER_THRESHOLD ? 1 : 0);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Assign the pixels without a region to the nearest regions by one wavefront,
+     * add them to the statistics, and leave only the pixels which no region reaches as borders
+     */
+    private void fillUnassigned() {
+        int[] meanColors = new int[regions.size()];
+        for (int r = 0; r < meanColors.length; r++) {
+            meanColors[r] = statistics.getMeanColor(r);
+        }
+
+        // the pixels to be filled
+        remain.clear();
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                if (labelMap[row + x] != UNASSIGNED) {
+                    continue;
+                }
+                int left = x;
+                while (x + 1 < width && labelMap[row + x + 1] == UNASSIGNED) {
+                    x++;
+                }
+                remain.addSpan(y, left, x);
+            }
+        }
+
+        // the seed labels are no longer used, and hold the queue
+        WavefrontFill.apply(labelMap, width, height, bilateralLab, meanColors, seedLabels);
+
+        border = new Border(width, height);
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                if (!remain.contains(x, y)) {
+                    continue;
+                }
+                int label = labelMap[row + x], left = x;
+                while (x + 1 < width && labelMap[row + x + 1] == label && remain.contains(x + 1, y)) {
+                    x++;
+                }
+                if (label == UNASSIGNED) {
+                    border.addSpan(y, left, x);
+                }
+                else {
+                    statistics.addSpan(label, y, left, x, bilateralLab, width);
+                }
+            }
+        }
+    }
+
+    /**
+     * Segment the image at half resolution, upsample the labels into the label map,
+     * and find the band of pixels around the boundaries of the coarse regions
+     * @return The band, which has to be segmented again
+     */
+    private PixelSet segmentCoarse(RawImage image) {
+        if (coarse == null) {
+            coarse = new SegmentationEngine();
+        }
+        coarse.setPyramidLevels(pyramidLevels - 1);
+        if (coarse.getBilateralFilter() != bilateralFilter) {
+            coarse.setBilateralFilter(bilateralFilter);
+        }
+        coarse.setBands(bands);
+        coarse.setLabPrecision(labPrecision);
+        coarse.setThinBorders(thinBorders);
+        coarse.setFillBorders(fillBorders);
+        // the RGB plane is halved as opaque data, whatever the alpha of the displayed image
+        int[] half = ImagePyramid.halve(image.getRGBData(), width, height, bands);
+        coarse.segment(new RawImage((width + 1) / 2, (height + 1) / 2, half, null), null);
+
+        // the label of each pixel is that of the coarse pixel covering it
+        int[] coarseLabels = coarse.getLabelMap();
+        int cw = coarse.getWidth();
+        for (int y = 0; y < height; y++) {
+            int row = y * width, coarseRow = (y / 2) * cw;
+            for (int x = 0; x < width; x++) {
+                labelMap[row + x] = coarseLabels[coarseRow + x / 2];
+            }
+        }
+
+        // pixels without a region, and the pixels on both sides of a boundary
+        remain.clear();
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int label = labelMap[row + x];
+                if (label == UNASSIGNED) {
+                    remain.add(x, y);
+                }
+                if (x + 1 < width && labelMap[row + x + 1] != label) {
+                    remain.add(x, y);
+                    remain.add(x + 1, y);
+                }
+                if (y + 1 < height && labelMap[row + width + x] != label) {
+                    remain.add(x, y);
+                    remain.add(x, y + 1);
+                }
+            }
+        }
+
+        // the band within the margin of the boundaries; the distances are overwritten later
+        DistanceTransform.apply(remain, borderDistance, bands);
+        band.clear();
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                if (borderDistance[row + x] > BAND_MARGIN * BAND_MARGIN) {
+                    continue;
+                }
+                int left = x;
+                while (x + 1 < width && borderDistance[row + x + 1] <= BAND_MARGIN * BAND_MARGIN) {
+                    x++;
+                }
+                band.addSpan(y, left, x);
+            }
+        }
+
+        processedPixels = band.size() + coarse.getProcessedPixels();
+        return band;
+    }
+
+    /**
+     * Make the coarse regions seeds which are already grown, labeled by their coarse labels,
+     * and unassign the pixels of the band. The statistics outside of the filtered context
+     * of the band are those of the unfiltered colors.
+     */
+    private void addCoarseRegions(PixelSet band) {
+        int regionCount = coarse.getRegions().size();
+        for (int k = 0; k < regionCount; k++) {
+            int label = makeSeed();
+            coarseOf[label] = k;
+            seedIdentities.add(new RegionIdentity(label));
+        }
+        seedStatistics.ensureLabels(sameRegions.size());
+
+        // the runs of the band are unassigned, and the coarse pixels between them are added
+        int next = 0;
+        for (int i = band.nextPixel(0), end; i >= 0; i = band.nextPixel(end)) {
+            end = band.runEnd(i);
+            addCoarseSpans(next, i);
+            Arrays.fill(labelMap, i, end, UNASSIGNED);
+            next = end;
+        }
+        addCoarseSpans(next, width * height);
+    }
+
+    /**
+     * Add the runs of the coarse labels between canvas indices [from, to) to the seed statistics
+     */
+    private void addCoarseSpans(int from, int to) {
+        for (int i = from; i < to; i++) {
+            int y = i / width, rowEnd = Math.min(to, (y + 1) * width);
+            int label = labelMap[i], left = i;
+            while (i + 1 < rowEnd && labelMap[i + 1] == label) {
+                i++;
+            }
+            seedStatistics.addSpan(label, y, left - y * width, i - y * width, bilateralLab, width);
+        }
+    }
+
+    private static void notify(Segmentation.Passive passive, Segmentation.Status st) {
+        if (passive != null) {
+            passive.call(st);
+        }
+    }
+}
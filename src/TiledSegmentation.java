@@ -0,0 +1,386 @@
+import ImageUtility.IntPlane;
+import ImageUtility.UnionFind;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Segmentation of images too large for the heap, tile by tile.
+ *
+ * The image is cut into tiles, and each tile is read with a margin of its
+ * neighbors and segmented on its own, in parallel. The labels of the core of
+ * each tile are spilled into a temporary file, and only the two pixel lines
+ * across each seam are kept. Regions of neighboring tiles which mostly cover
+ * each other along a seam are joined, and the global label map is written
+ * tile by tile. The heap in use is bounded by the tile size, apart from one
+ * int per region.
+ *
+ * The tiles are decoded from the file one by one, or copied from an
+ * OffHeapImage into which the file has been decoded once. The filter
+ * stages of an OffHeapImage run once over its whole planes, so the tiles
+ * are not filtered again and their margins see the same colors as their
+ * neighbors.
+ *
+ * The label map file holds the width and the height followed by the row-major
+ * labels, all big-endian 32 bit integers. Borders are labeled -1.
+ */
+public class TiledSegmentation {
+
+    public static final int DEFAULT_OVERLAP = 32;
+
+    // bytes of the width and the height before the labels
+    private static final int HEADER_SIZE = 8;
+
+    private final int tileSize, overlap;
+    private final ThreadLocal<SegmentationEngine> engines;
+    private final ExecutorService executor;
+
+    /**
+     * Source of the pixels of the tiles
+     */
+    private interface Source {
+        /**
+         * Segment a rectangle of the image with an engine
+         */
+        void segment(SegmentationEngine engine, Rectangle region) throws IOException;
+    }
+
+    /**
+     * Tile of the image; the core is the part of the label map it writes
+     */
+    private static class Tile {
+        int x, y, width, height;
+        int labelCount;
+
+        // whether each label has pixels in the core
+        boolean[] inCore;
+
+        // labels of the two lines across each seam, or null at the edges of the image
+        int[] left, right, top, bottom;
+    }
+
+    /**
+     * @param tileSize Width and height of the cores of the tiles
+     * @param overlap Pixels of the neighbors read and segmented with each tile, at least 1
+     * @param engines Engine of each thread
+     * @param executor Threads segmenting the tiles
+     */
+    public TiledSegmentation(int tileSize, int overlap, ThreadLocal<SegmentationEngine> engines,
+                             ExecutorService executor) {
+        if (tileSize < 1 || overlap < 1) {
+            throw new IllegalArgumentException("Invalid tile size or overlap: " + tileSize + ", " + overlap);
+        }
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+        this.engines = engines;
+        this.executor = executor;
+    }
+
+    /**
+     * Segment an image file into a label map file
+     * @param input Image file
+     * @param output Label map file
+     * @return The number of regions
+     * @throws IOException if the image cannot be read or the label map cannot be written
+     */
+    public int segment(final File input, File output) throws IOException {
+        Dimension size = RawImage.readSize(input);
+        return segment(new Source() {
+            @Override
+            public void segment(SegmentationEngine engine, Rectangle region) throws IOException {
+                engine.segment(RawImage.read(input, region), null);
+            }
+        }, size.width, size.height, output);
+    }
+
+    /**
+     * Segment an image in off-heap planes into a label map file.
+     * The filter stages of the engine of the calling thread run over the whole image first.
+     * @param image Image, whose planes must stay open until this returns
+     * @param output Label map file
+     * @return The number of regions
+     * @throws IOException if the label map cannot be written
+     */
+    public int segment(final OffHeapImage image, File output) throws IOException {
+        SegmentationEngine first = engines.get();
+        image.filter(first.getPreprocessor(), first.getBands());
+        final IntPlane bilateralLab = image.getBilateralLabPlane(), edges = image.getEdgePlane();
+
+        return segment(new Source() {
+            @Override
+            public void segment(SegmentationEngine engine, Rectangle region) {
+                engine.segment(image.getTile(region), bilateralLab, edges, region, null);
+            }
+        }, image.getWidth(), image.getHeight(), output);
+    }
+
+    private int segment(final Source input, final int width, final int height, File output) throws IOException {
+        File spill = File.createTempFile("tiles", ".labels", output.getAbsoluteFile().getParentFile());
+        RandomAccessFile spillFile = new RandomAccessFile(spill, "rw");
+        RandomAccessFile outputFile = new RandomAccessFile(output, "rw");
+        try {
+            final FileChannel spillChannel = spillFile.getChannel();
+            final FileChannel outputChannel = outputFile.getChannel();
+
+            /*
+             * Segment the tiles, and spill the labels of their cores
+             */
+            final List<Tile> tiles = new ArrayList<Tile>();
+            for (int y = 0; y < height; y += tileSize) {
+                for (int x = 0; x < width; x += tileSize) {
+                    Tile tile = new Tile();
+                    tile.x = x;
+                    tile.y = y;
+                    tile.width = Math.min(tileSize, width - x);
+                    tile.height = Math.min(tileSize, height - y);
+                    tiles.add(tile);
+                }
+            }
+
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (final Tile tile : tiles) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        segmentTile(input, tile, width, height, spillChannel);
+                        return null;
+                    }
+                });
+            }
+            invokeAll(tasks);
+
+            /*
+             * Join the regions along the seams
+             */
+            int columns = (width + tileSize - 1) / tileSize;
+            int[] offset = new int[tiles.size()];
+            UnionFind sameRegions = new UnionFind();
+            for (int t = 0; t < tiles.size(); t++) {
+                offset[t] = sameRegions.size();
+                for (int k = 0; k < tiles.get(t).labelCount; k++) {
+                    sameRegions.makeSet();
+                }
+            }
+            for (int t = 0; t < tiles.size(); t++) {
+                Tile tile = tiles.get(t);
+                if (tile.right != null) {
+                    stitch(tile.right, offset[t], tiles.get(t + 1).left, offset[t + 1], sameRegions);
+                }
+                if (tile.bottom != null) {
+                    stitch(tile.bottom, offset[t], tiles.get(t + columns).top, offset[t + columns], sameRegions);
+                }
+            }
+
+            // global labels in the order of the tiles; regions only in the margins get none
+            final int[] globalLabel = new int[sameRegions.size()];
+            int[] regionOf = new int[sameRegions.size()];
+            Arrays.fill(regionOf, SegmentationEngine.UNASSIGNED);
+            int regionCount = 0;
+            for (int t = 0; t < tiles.size(); t++) {
+                Tile tile = tiles.get(t);
+                for (int k = 0; k < tile.labelCount; k++) {
+                    if (!tile.inCore[k]) {
+                        continue;
+                    }
+                    int root = sameRegions.find(offset[t] + k);
+                    if (regionOf[root] == SegmentationEngine.UNASSIGNED) {
+                        regionOf[root] = regionCount++;
+                    }
+                    globalLabel[offset[t] + k] = regionOf[root];
+                }
+            }
+
+            /*
+             * Write the global label map tile by tile
+             */
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(width).putInt(height).flip();
+            write(outputChannel, header, 0);
+            outputFile.setLength(HEADER_SIZE + 4L * width * height);
+
+            tasks.clear();
+            for (int t = 0; t < tiles.size(); t++) {
+                final Tile tile = tiles.get(t);
+                final int tileOffset = offset[t];
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        writeTile(tile, tileOffset, globalLabel, width, spillChannel, outputChannel);
+                        return null;
+                    }
+                });
+            }
+            invokeAll(tasks);
+
+            return regionCount;
+        } finally {
+            spillFile.close();
+            outputFile.close();
+            if (!spill.delete()) {
+                spill.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Segment a tile with its margin, spill the labels of its core and keep its seams
+     */
+    private void segmentTile(Source input, Tile tile, int width, int height, FileChannel spill) throws IOException {
+        Rectangle region = new Rectangle(tile.x, tile.y, tile.width, tile.height);
+        region.grow(overlap, overlap);
+        region = region.intersection(new Rectangle(0, 0, width, height));
+
+        SegmentationEngine engine = engines.get();
+        input.segment(engine, region);
+        int[] labels = engine.getLabelMap();
+        tile.labelCount = engine.getRegions().size();
+        tile.inCore = new boolean[tile.labelCount];
+
+        // the cores of the tiles follow each other in the spill file
+        ByteBuffer buffer = ByteBuffer.allocate(4 * tile.width * tile.height);
+        IntBuffer ints = buffer.asIntBuffer();
+        for (int y = tile.y; y < tile.y + tile.height; y++) {
+            int row = (y - region.y) * region.width + tile.x - region.x;
+            ints.put(labels, row, tile.width);
+            for (int i = row; i < row + tile.width; i++) {
+                if (labels[i] != SegmentationEngine.UNASSIGNED) {
+                    tile.inCore[labels[i]] = true;
+                }
+            }
+        }
+        write(spill, buffer, spillPosition(tile, width));
+
+        int right = tile.x + tile.width, bottom = tile.y + tile.height;
+        if (tile.x > 0) {
+            tile.left = seam(labels, region, tile.x - 1, tile.y, 1, 0, tile.height);
+        }
+        if (right < width) {
+            tile.right = seam(labels, region, right - 1, tile.y, 1, 0, tile.height);
+        }
+        if (tile.y > 0) {
+            tile.top = seam(labels, region, tile.x, tile.y - 1, 0, 1, tile.width);
+        }
+        if (bottom < height) {
+            tile.bottom = seam(labels, region, tile.x, bottom - 1, 0, 1, tile.width);
+        }
+    }
+
+    /**
+     * Labels of the two lines across a seam, starting at (x, y) and (x + dx, y + dy),
+     * and running perpendicular to (dx, dy) for 'length' pixels
+     */
+    private static int[] seam(int[] labels, Rectangle region, int x, int y, int dx, int dy, int length) {
+        int[] seam = new int[2 * length];
+        for (int i = 0; i < length; i++) {
+            int px = x + dy * i - region.x, py = y + dx * i - region.y;
+            seam[2 * i] = labels[py * region.width + px];
+            seam[2 * i + 1] = labels[(py + dy) * region.width + px + dx];
+        }
+        return seam;
+    }
+
+    /**
+     * Join the regions of two tiles which cover more than half of each other's pixels
+     * on the lines across their seam
+     */
+    private static void stitch(int[] a, int offsetA, int[] b, int offsetB, UnionFind sameRegions) {
+        HashMap<Long, Integer> pairs = new HashMap<Long, Integer>();
+        HashMap<Integer, Integer> countA = new HashMap<Integer, Integer>(), countB = new HashMap<Integer, Integer>();
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == SegmentationEngine.UNASSIGNED || b[i] == SegmentationEngine.UNASSIGNED) {
+                continue;
+            }
+            increment(pairs, (long) a[i] << 32 | b[i]);
+            increment(countA, a[i]);
+            increment(countB, b[i]);
+        }
+
+        for (java.util.Map.Entry<Long, Integer> pair : pairs.entrySet()) {
+            int la = (int) (pair.getKey() >>> 32), lb = (int) (long) pair.getKey();
+            if (2 * pair.getValue() > Math.min(countA.get(la), countB.get(lb))) {
+                sameRegions.union(offsetA + la, offsetB + lb);
+            }
+        }
+    }
+
+    private static <K> void increment(HashMap<K, Integer> counts, K key) {
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Read the spilled labels of a tile, and write them as global labels into the label map
+     */
+    private static void writeTile(Tile tile, int tileOffset, int[] globalLabel, int width,
+                                  FileChannel spill, FileChannel output) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * tile.width * tile.height);
+        read(spill, buffer, spillPosition(tile, width));
+        IntBuffer ints = buffer.asIntBuffer();
+        for (int i = 0; i < tile.width * tile.height; i++) {
+            int label = ints.get(i);
+            ints.put(i, label == SegmentationEngine.UNASSIGNED ? label : globalLabel[tileOffset + label]);
+        }
+
+        for (int y = 0; y < tile.height; y++) {
+            buffer.limit(4 * (y + 1) * tile.width).position(4 * y * tile.width);
+            write(output, buffer, HEADER_SIZE + 4L * ((long) (tile.y + y) * width + tile.x));
+        }
+    }
+
+    /**
+     * The tiles above a tile and those on its left within its row are spilled before it
+     */
+    private static long spillPosition(Tile tile, int width) {
+        return 4L * ((long) tile.y * width + (long) tile.x * tile.height);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of the spilled labels");
+            }
+            position += n;
+        }
+        buffer.flip();
+    }
+
+    private void invokeAll(List<Callable<Void>> tasks) throws IOException {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (Callable<Void> task : tasks) {
+            futures.add(executor.submit(task));
+        }
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}